@@ -1,6 +1,7 @@
 package com.github.keenon.lense.convenience;
 
 import com.github.keenon.lense.gameplay.Game;
+import com.github.keenon.lense.gameplay.GraphicalModelOverlay;
 import com.github.keenon.lense.gameplay.distributions.ContinuousDistribution;
 import com.github.keenon.lense.gameplay.distributions.DiscreteSetDistribution;
 import com.github.keenon.lense.gameplay.players.GamePlayer;
@@ -294,7 +295,8 @@ public abstract class StaticBatchLense {
             ConcatVector weights;
             if (parallelBatchIgnoreRetraining()) weights = initialWeights();
             else weights = lenseWithRetraining.weights;
-            Game game = new Game(model.cloneModel(), weights, humanSource.getSimulatedProvider(), humanSource.getAvailableHumans(model));
+            // The game only needs its own copy of whatever it changes, so it shares the batch's model underneath
+            Game game = new Game(GraphicalModelOverlay.over(model), weights, humanSource.getSimulatedProvider(), humanSource.getAvailableHumans(model));
 
             // Set max allowed job postings to the minimum number of tags on any variable in the model
             if (humanSource instanceof ModelTagsHumanSource) {
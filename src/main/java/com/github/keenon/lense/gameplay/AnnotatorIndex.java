@@ -0,0 +1,198 @@
+package com.github.keenon.lense.gameplay;
+
+import java.util.*;
+
+/**
+ * Keeps track of which humans are free to be asked about which variables, for a single Game.
+ *
+ * Variables are indexed directly by their id, and humans by their slot (the order in which they arrived), so the whole
+ * thing is a bit matrix with a row per variable, plus a count of available pairs per variable and overall. Generating
+ * and counting legal moves is then just walking set bits, with no boxing of variable ids and no hashing of humans.
+ *
+ * Game keeps this up to date as humans arrive and queries are launched, and asMap() gives the old Map view of it.
+ */
+public class AnnotatorIndex {
+    // The variables that humans can be asked about, in ascending order
+    final int[] variables;
+    final BitSet[] available;
+    final int[] counts;
+    int total = 0;
+
+    // The human in each slot, so we can get from a bit back to a HumanArrival
+    Game.HumanArrival[] humans = new Game.HumanArrival[8];
+
+    /**
+     * @param numVariables one more than the largest variable id
+     * @param annotatable the ids of the variables that humans can be asked about
+     */
+    AnnotatorIndex(int numVariables, Set<Integer> annotatable) {
+        variables = new int[annotatable.size()];
+        int cursor = 0;
+        for (int variable : annotatable) variables[cursor++] = variable;
+        Arrays.sort(variables);
+
+        available = new BitSet[numVariables];
+        counts = new int[numVariables];
+        for (int variable : variables) available[variable] = new BitSet();
+    }
+
+    /**
+     * @return the variables that humans can be asked about, in ascending order, which must not be modified
+     */
+    public int[] getVariables() {
+        return variables;
+    }
+
+    public boolean isAnnotatable(int variable) {
+        return variable >= 0 && variable < available.length && available[variable] != null;
+    }
+
+    /**
+     * @return the number of humans free to be asked about variable
+     */
+    public int count(int variable) {
+        return isAnnotatable(variable) ? counts[variable] : 0;
+    }
+
+    /**
+     * @return the number of (variable, human) pairs we could launch a query on
+     */
+    public int total() {
+        return total;
+    }
+
+    public boolean isAvailable(int variable, Game.HumanArrival human) {
+        return isAnnotatable(variable) && human.slot >= 0 && human.slot < humans.length && humans[human.slot] == human &&
+                available[variable].get(human.slot);
+    }
+
+    /**
+     * @return the smallest slot at or after fromSlot holding a human who's free to be asked about variable, or -1 if
+     * there isn't one
+     */
+    public int nextAvailable(int variable, int fromSlot) {
+        if (!isAnnotatable(variable)) return -1;
+        return available[variable].nextSetBit(fromSlot);
+    }
+
+    /**
+     * @return the human in a slot
+     */
+    public Game.HumanArrival getHuman(int slot) {
+        return humans[slot];
+    }
+
+    void registerHuman(Game.HumanArrival human) {
+        if (human.slot >= humans.length) humans = Arrays.copyOf(humans, Math.max(humans.length * 2, human.slot + 1));
+        humans[human.slot] = human;
+    }
+
+    void forgetHuman(Game.HumanArrival human) {
+        assert(humans[human.slot] == human);
+        humans[human.slot] = null;
+    }
+
+    void add(int variable, Game.HumanArrival human) {
+        assert(isAnnotatable(variable));
+        assert(!available[variable].get(human.slot));
+        available[variable].set(human.slot);
+        counts[variable]++;
+        total++;
+    }
+
+    void remove(int variable, Game.HumanArrival human) {
+        assert(isAvailable(variable, human));
+        available[variable].clear(human.slot);
+        counts[variable]--;
+        total--;
+    }
+
+    /**
+     * @return a read-only view of this index, from each variable humans can be asked about to the humans who are free
+     * to be asked about it
+     */
+    public Map<Integer,Set<Game.HumanArrival>> asMap() {
+        return new AbstractMap<Integer,Set<Game.HumanArrival>>() {
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof Integer && isAnnotatable((Integer)key);
+            }
+
+            @Override
+            public Set<Game.HumanArrival> get(Object key) {
+                return containsKey(key) ? humansFor((Integer)key) : null;
+            }
+
+            @Override
+            public int size() {
+                return variables.length;
+            }
+
+            @Override
+            public Set<Entry<Integer,Set<Game.HumanArrival>>> entrySet() {
+                return new AbstractSet<Entry<Integer,Set<Game.HumanArrival>>>() {
+                    @Override
+                    public int size() {
+                        return variables.length;
+                    }
+
+                    @Override
+                    public Iterator<Entry<Integer,Set<Game.HumanArrival>>> iterator() {
+                        return new Iterator<Entry<Integer,Set<Game.HumanArrival>>>() {
+                            int cursor = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return cursor < variables.length;
+                            }
+
+                            @Override
+                            public Entry<Integer,Set<Game.HumanArrival>> next() {
+                                if (!hasNext()) throw new NoSuchElementException();
+                                int variable = variables[cursor++];
+                                return new SimpleImmutableEntry<>(variable, humansFor(variable));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return a read-only view of the humans free to be asked about a variable
+     */
+    private Set<Game.HumanArrival> humansFor(int variable) {
+        return new AbstractSet<Game.HumanArrival>() {
+            @Override
+            public int size() {
+                return count(variable);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Game.HumanArrival && isAvailable(variable, (Game.HumanArrival)o);
+            }
+
+            @Override
+            public Iterator<Game.HumanArrival> iterator() {
+                return new Iterator<Game.HumanArrival>() {
+                    int slot = nextAvailable(variable, 0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot != -1;
+                    }
+
+                    @Override
+                    public Game.HumanArrival next() {
+                        if (slot == -1) throw new NoSuchElementException();
+                        Game.HumanArrival human = humans[slot];
+                        slot = nextAvailable(variable, slot + 1);
+                        return human;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.keenon.lense.gameplay;
+
+import java.util.*;
+
+/**
+ * Keeps a set of clones of a single game around between calls, so that a gameplayer that needs thread safe copies every
+ * move doesn't have to build them from scratch every move.
+ *
+ * Game.getClones() pops the whole stack, deep copies the model, builds a new CliqueTree for every clone, and replays
+ * every event. Here we remember which events of the original game each clone has copies of, and when asked for clones
+ * again we only pop the copies of events that have since been popped from the original, and push copies of the events
+ * that have been pushed. So the cost is proportional to the events since the last call, rather than the size of the
+ * model. New clones only get built when more are asked for than we've had to make before.
+ */
+public class ClonePool {
+    // The events on the original game's stack the last time we synced, and their times, so we can tell which are still
+    // there, since the same event object could in principle be popped and pushed again at a different time
+    final List<Game.Event> synced = new ArrayList<>();
+    final List<Long> syncedTimes = new ArrayList<>();
+
+    final List<Game> clones = new ArrayList<>();
+    // For each clone, the original events to their copies on that clone
+    final List<Map<Game.Event, Game.Event>> oldToNew = new ArrayList<>();
+    // The original game's Game.modelVersion when we made the clones we have, which are stale once that changes
+    int modelVersion = 0;
+
+    /**
+     * Gets clones of a game in its current state. These are the same objects every time, so callers must leave them in
+     * the state they found them in, and only one caller can use the pool at a time.
+     *
+     * @param game the game to clone, which must always be the same game
+     * @param numClones the number of clones to get
+     * @return an array of thread safe copies of the current game
+     */
+    public synchronized Game[] getClones(Game game, int numClones) {
+        // If the model changed underneath our clones, there's nothing to bring up to date, so start again
+
+        if (game.modelVersion != modelVersion) {
+            clones.clear();
+            oldToNew.clear();
+            synced.clear();
+            syncedTimes.clear();
+            modelVersion = game.modelVersion;
+        }
+
+        // Find how much of the stack hasn't changed since we last synced
+
+        int common = 0;
+        while (common < synced.size() && common < game.stack.size() &&
+                game.stack.get(common) == synced.get(common) &&
+                game.stack.get(common).timeSinceGameStart == syncedTimes.get(common)) {
+            common++;
+        }
+
+        // Bring every clone we already have up to date
+
+        for (int i = 0; i < clones.size(); i++) {
+            Game clone = clones.get(i);
+            Map<Game.Event, Game.Event> mapping = oldToNew.get(i);
+            for (int j = synced.size() - 1; j >= common; j--) {
+                assert(clone.stack.peek() == mapping.get(synced.get(j)));
+                clone.stack.peek().pop(clone);
+                mapping.remove(synced.get(j));
+            }
+            for (int j = common; j < game.stack.size(); j++) {
+                Game.Event e = game.stack.get(j);
+                Game.Event copy = e.clone(mapping);
+                mapping.put(e, copy);
+                copy.push(clone);
+            }
+        }
+
+        while (synced.size() > common) {
+            synced.remove(synced.size() - 1);
+            syncedTimes.remove(syncedTimes.size() - 1);
+        }
+        for (int j = common; j < game.stack.size(); j++) {
+            synced.add(game.stack.get(j));
+            syncedTimes.add(game.stack.get(j).timeSinceGameStart);
+        }
+
+        // Build any more that we need from scratch
+
+        if (numClones > clones.size()) {
+            List<Map<Game.Event, Game.Event>> mappings = new ArrayList<>();
+            clones.addAll(Arrays.asList(game.getClones(numClones - clones.size(), mappings)));
+            oldToNew.addAll(mappings);
+        }
+
+        return clones.subList(0, numClones).toArray(new Game[numClones]);
+    }
+
+    /**
+     * @return the number of clones we're holding on to
+     */
+    public synchronized int size() {
+        return clones.size();
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.keenon.lense.gameplay;
+
+import java.util.*;
+
+/**
+ * The event stack of a Game. This has the same push/pop/peek semantics as java.util.Stack, but it's a plain growable
+ * array with no synchronization, since a Game (and every clone of one) is only ever used by a single thread at a time,
+ * and every playout of every search pushes and pops on it.
+ *
+ * It's also a List, so anything that reads a stack can keep doing so, but hot paths should iterate by index with size()
+ * and get(), which doesn't allocate an iterator.
+ */
+public class EventStack extends AbstractList<Game.Event> implements RandomAccess {
+    Game.Event[] elements;
+    int size = 0;
+
+    public EventStack() {
+        this(16);
+    }
+
+    public EventStack(int initialCapacity) {
+        elements = new Game.Event[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Pushes an event onto the top of the stack.
+     *
+     * @return the event pushed
+     */
+    public Game.Event push(Game.Event e) {
+        if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = e;
+        modCount++;
+        return e;
+    }
+
+    /**
+     * Removes the event at the top of the stack.
+     *
+     * @return the event removed
+     * @throws EmptyStackException if the stack is empty
+     */
+    public Game.Event pop() {
+        if (size == 0) throw new EmptyStackException();
+        Game.Event e = elements[--size];
+        elements[size] = null;
+        modCount++;
+        return e;
+    }
+
+    /**
+     * @return the event at the top of the stack, without removing it
+     * @throws EmptyStackException if the stack is empty
+     */
+    public Game.Event peek() {
+        if (size == 0) throw new EmptyStackException();
+        return elements[size - 1];
+    }
+
+    public boolean empty() {
+        return size == 0;
+    }
+
+    /**
+     * Finds an event by reference, rather than by equals(), which for events compares their contents.
+     *
+     * @return the index of e on the stack, or -1 if it isn't there
+     */
+    public int indexOfIdentical(Game.Event e) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (elements[i] == e) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public Game.Event get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+        return elements[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(Game.Event e) {
+        push(e);
+        return true;
+    }
+
+    @Override
+    public Game.Event set(int index, Game.Event e) {
+        Game.Event previous = get(index);
+        elements[index] = e;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Game.Event e) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+        if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = e;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Game.Event remove(int index) {
+        Game.Event e = get(index);
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        elements[--size] = null;
+        modCount++;
+        return e;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return Arrays.copyOf(elements, size, Object[].class);
+    }
+}
@@ -7,6 +7,7 @@ import com.github.keenon.loglinear.model.ConcatVectorTable;
 import com.github.keenon.loglinear.model.GraphicalModel;
 import com.github.keenon.lense.gameplay.distributions.ContinuousDistribution;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -29,6 +30,8 @@ public class Game {
     public GraphicalModel model;
     public ConcatVector weights;
     public CliqueTree tree;
+    public IncrementalMarginals inference;
+    public MarginalCache marginalCache = new MarginalCache(); // shared with clones, may be set to null to disable
     public int[] variableSizes;
 
     // Parameters for sampling events
@@ -37,6 +40,48 @@ public class Game {
     public ArtificialHumanProvider humanProvider;
     public Optional<HumanSource> humanSource;
 
+    // If this isn't null, getLegalMoves() only offers queries on the variables it thinks are worth asking about
+    public ActionFilter actionFilter = null;
+
+    /**
+     * This allows the game to prune query moves that a gameplayer would only be wasting its search on. It's consulted
+     * once per variable every time legal moves are generated, so it should be cheap.
+     */
+    public static abstract class ActionFilter {
+        /**
+         * @param game the game, in the state we're generating moves for
+         * @param variable a variable that humans can be asked about
+         * @return whether to offer queries on variable
+         */
+        public abstract boolean isWorthQuerying(Game game, int variable);
+    }
+
+    /**
+     * Stops offering queries on a variable once its marginal puts at least a given probability on a single assignment,
+     * since at that point another human's opinion almost never changes the MAP estimate. The marginals are maintained
+     * incrementally by the game, so this costs a scan of the variable's marginal.
+     */
+    public static class ConfidenceActionFilter extends ActionFilter {
+        public final double confidence;
+
+        /**
+         * @param confidence the probability of a variable's most likely assignment past which we stop asking about it
+         */
+        public ConfidenceActionFilter(double confidence) {
+            this.confidence = confidence;
+        }
+
+        @Override
+        public boolean isWorthQuerying(Game game, int variable) {
+            double[][] marginals = game.getMarginals();
+            if (variable >= marginals.length || marginals[variable] == null) return true;
+            for (double p : marginals[variable]) {
+                if (p >= confidence) return false;
+            }
+            return true;
+        }
+    }
+
     /**
      * This allows the game to configure the kinds of additional io.hybridcrowd.humans it assumes will show up.
      */
@@ -54,6 +99,21 @@ public class Game {
         Map<Integer,ConcatVector> disagreementVectors;
         ContinuousDistribution humanDelayDistribution;
 
+        // Every human we make has the same error model, so we build it once per set of variable sizes and hand out the
+        // same tables each time. Besides saving the allocation, this is what lets Game recognize our humans as
+        // interchangeable, since it compares error models by reference.
+        private volatile ErrorModelCache errorModelCache = null;
+
+        private static class ErrorModelCache {
+            final int[] variableSizes;
+            final ConcatVectorTable[] errorDistribution;
+
+            ErrorModelCache(int[] variableSizes, ConcatVectorTable[] errorDistribution) {
+                this.variableSizes = variableSizes;
+                this.errorDistribution = errorDistribution;
+            }
+        }
+
         public ArtificialHumanAgreementDisagrementProvider(ConcatVector agreementVector,
                                                            Map<Integer,ConcatVector> disagreementVectors,
                                                            ContinuousDistribution humanDelayDistribution) {
@@ -64,11 +124,20 @@ public class Game {
 
         @Override
         public HumanArrival getArtificialHuman(Game game, HumanJobPosting job) {
+            return new HumanArrival(getErrorDistribution(game.variableSizes), humanDelayDistribution, job, new HashMap<>());
+        }
+
+        private ConcatVectorTable[] getErrorDistribution(int[] variableSizes) {
+            ErrorModelCache cache = errorModelCache;
+            if (cache != null && (cache.variableSizes == variableSizes || Arrays.equals(cache.variableSizes, variableSizes))) {
+                return cache.errorDistribution;
+            }
+
             // This is actually tricky, since we need a distribution over the kinds of io.hybridcrowd.humans who can show up.
-            ConcatVectorTable[] errorDistribution = new ConcatVectorTable[game.variableSizes.length];
-            for (int i = 0; i < game.variableSizes.length; i++) {
-                if (game.variableSizes[i] != -1) {
-                    int varSize = game.variableSizes[i];
+            ConcatVectorTable[] errorDistribution = new ConcatVectorTable[variableSizes.length];
+            for (int i = 0; i < variableSizes.length; i++) {
+                if (variableSizes[i] != -1) {
+                    int varSize = variableSizes[i];
                     errorDistribution[i] = new ConcatVectorTable(new int[]{varSize,varSize});
                     for (int[] assn : errorDistribution[i]) {
                         errorDistribution[i].setAssignmentValue(assn, assn[0] == assn[1] ? ()->agreementVector : ()->disagreementVectors.get(varSize));
@@ -76,27 +145,49 @@ public class Game {
                 }
             }
 
-            return new HumanArrival(errorDistribution, humanDelayDistribution, job, new HashMap<>());
+            errorModelCache = new ErrorModelCache(variableSizes, errorDistribution);
+            return errorDistribution;
         }
     }
 
     // Game state
 
-    public Stack<Event> stack = new Stack<>();
+    public EventStack stack = new EventStack();
 
     // Frame dependant game state
 
     public Set<QueryLaunch> inFlightRequests = Collections.newSetFromMap(new IdentityHashMap<>());
     public Set<HumanJobPosting> jobPostings = Collections.newSetFromMap(new IdentityHashMap<>());
     public Set<HumanArrival> availableHumans = Collections.newSetFromMap(new IdentityHashMap<>());
-    public Map<Integer,Set<HumanArrival>> availableAnnotators = new HashMap<>();
+    public AnnotatorIndex annotators;
+    public Map<Integer,Set<HumanArrival>> availableAnnotators; // a read-only view of annotators
     public long timeSinceGameStart = 0;
 
+    // Bookkeeping that would otherwise take a scan of the whole stack, which move generation needs at every node of every
+    // playout. Orphaned requests are the in-flight queries whose human has left, which must be failed before anything
+    // else can happen, keyed by their position on the stack so the oldest one comes first.
+
+    int jobPostingsMade = 0;
+    TreeMap<Integer,QueryLaunch> orphanedRequests = new TreeMap<>();
+
+    // A Zobrist-style hash of the frame dependant state above, kept up to date by every push and pop, so that searches can
+    // recognize when different orderings of events arrive at the same state. Humans are identified by the order in which
+    // they arrived, rather than by reference, so that equivalent states in different clones hash the same.
+
+    long stateHash = 0;
+    int humansArrived = 0;
+
     // Correspondence between variables in the GraphicalModel originally, and variable IDs that will be used to register
     // human observations
 
     AtomicInteger usedObservationVariables = new AtomicInteger();
 
+    // A copy of the model that clones of this game share, see getCloneBase(), and how many times the model had been
+    // changed outside of events when we made it, see modelChanged()
+
+    GraphicalModel cloneBase = null;
+    int modelVersion = 0;
+
     /**
      * Constructor for a new Game object, takes just a Model to do inference over, and a ConcatVector of weights.
      *
@@ -109,19 +200,23 @@ public class Game {
         variableSizes = model.getVariableSizes();
         this.weights = weights;
         tree = new CliqueTree(model, weights);
+        inference = new IncrementalMarginals(this);
         this.humanProvider = humanSampler;
         this.humansAvailableServerSide = humansAvailableServerSide;
 
-        // Initialize the list that we'll use for available annotators for each variable
+        // Initialize the index that we'll use for available annotators for each variable
 
+        Set<Integer> annotatable = new HashSet<>();
+        int numVariables = variableSizes.length;
         for (GraphicalModel.Factor f : model.factors) {
             for (int n : f.neigborIndices) {
                 assert(variableSizes[n] > 0);
-                if (!availableAnnotators.containsKey(n)) {
-                    availableAnnotators.put(n, Collections.newSetFromMap(new IdentityHashMap<>()));
-                }
+                annotatable.add(n);
+                numVariables = Math.max(numVariables, n + 1);
             }
         }
+        annotators = new AnnotatorIndex(numVariables, annotatable);
+        availableAnnotators = annotators.asMap();
 
         // Initialize the mapping from GraphicalModel variables to human observation variables
 
@@ -139,13 +234,13 @@ public class Game {
      * the model since the base of the stack. We only return the marginals for the original model, excluding any
      * additional marginals that may have been included by CliqueTree because we added human observations.
      *
+     * These are maintained incrementally as events are pushed and popped (see IncrementalMarginals), and may be shared
+     * with other frames of the stack, so they must not be modified by the caller.
+     *
      * @return marginals, in linear space, for each variables' possible assignments
      */
     public double[][] getMarginals() {
-        double[][] marginals = tree.calculateMarginalsJustSingletons();
-        double[][] clippedMarginals = new double[variableSizes.length][];
-        System.arraycopy(marginals, 0, clippedMarginals, 0, variableSizes.length);
-        return clippedMarginals;
+        return inference.getMarginals();
     }
 
     /**
@@ -154,10 +249,44 @@ public class Game {
      * @return the assignments to each of the variables with highest probability given observations
      */
     public int[] getMAP() {
-        int[] map = tree.calculateMAP();
-        int[] clippedMap = new int[variableSizes.length];
-        System.arraycopy(map, 0, clippedMap, 0, variableSizes.length);
-        return clippedMap;
+        return inference.getMAP();
+    }
+
+    /**
+     * Two games that have the same state hash have (with overwhelming probability) the same humans in the same states,
+     * the same queries in flight, and the same observations, regardless of the order in which events got them there.
+     * This doesn't include whose turn it is, or the time.
+     *
+     * @return a hash of the current game state
+     */
+    public long getStateHash() {
+        return stateHash;
+    }
+
+    // These are the kinds of facts that contribute to the state hash. The hash is the sum of the keys for every fact
+    // that is currently true, which (unlike a XOR) lets us keep counts of identical facts, like open job postings.
+
+    static final int JOB_POSTING_MADE = 1;
+    static final int JOB_POSTING_OPEN = 2;
+    static final int HUMAN_ARRIVED = 3;
+    static final int HUMAN_DEPARTED = 4;
+    static final int QUERY_IN_FLIGHT = 5;
+    static final int QUERY_OBSERVED = 6;
+    static final int QUERY_FAILED = 7;
+
+    /**
+     * Gets a well mixed pseudo-random key for a single fact about the game state. Rather than keeping a table of random
+     * numbers, we use a SplitMix64 finalizer over the fields of the fact, which is just as good for hashing and doesn't
+     * need to know the size of the game in advance.
+     */
+    static long zobristKey(int kind, long a, long b, long c) {
+        long z = kind * 0x9E3779B97F4A7C15L;
+        z = (z ^ a) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ b) * 0x94D049BB133111EBL;
+        z = (z ^ c) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     /**
@@ -194,11 +323,7 @@ public class Game {
 
         // We keep a tab on the number of job postings allowed, which constrains the game trees from growing infinitely
 
-        int numJobPostings = 0;
-        for (Event e : stack) {
-            if (e instanceof HumanJobPosting) numJobPostings++;
-        }
-        boolean jobPostingAllowed = numJobPostings < humansAvailableServerSide;
+        boolean jobPostingAllowed = jobPostingsMade < humansAvailableServerSide;
 
         /*
         // Don't allow new job postings after the first query has been launched, or else the game trees get unnecessarily
@@ -209,8 +334,33 @@ public class Game {
         }
         */
 
+        // Humans who are interchangeable (see HumanArrival.isInterchangeableWith()) lead to the same game, up to which
+        // one we call which, so we only offer queries to the first of each group. With artificial humans that's
+        // typically all of them, which cuts the branching factor of the search by the number of humans.
+
+        int[] representatives = representativeSlots();
+
+        // Variables the action filter (if any) tells us aren't worth asking about get no queries at all
+
+        int[] variables = annotators.getVariables();
+        boolean[] pruned = new boolean[variables.length];
+        if (actionFilter != null) {
+            for (int v = 0; v < variables.length; v++) {
+                pruned[v] = annotators.count(variables[v]) > 0 && !actionFilter.isWorthQuerying(this, variables[v]);
+            }
+        }
+
+        int numQueries = 0;
+        for (int v = 0; v < variables.length; v++) {
+            if (pruned[v]) continue;
+            int i = variables[v];
+            for (int slot = annotators.nextAvailable(i, 0); slot != -1; slot = annotators.nextAvailable(i, slot + 1)) {
+                if (isRepresentative(i, slot, representatives)) numQueries++;
+            }
+        }
+
         int numLegalMoves =
-                availableAnnotators.values().stream().mapToInt(Set::size).sum() + // Observation requests
+                numQueries + // Observation requests
                         (inFlightRequests.size() == 0 && jobPostings.size() == 0 ? 1 : 0) + // Turn in
                         (inFlightRequests.size() > 0 || jobPostings.size() > 0 ? 1 : 0) + // Wait
                         (jobPostingAllowed ? 1 : 0); // Make job posting
@@ -229,9 +379,12 @@ public class Game {
             legalMoves[cursor++] = new HumanJobPosting();
         }
 
-        for (int i : availableAnnotators.keySet()) {
-            for (HumanArrival human : availableAnnotators.get(i)) {
-                legalMoves[cursor] = new QueryLaunch(i, human);
+        for (int v = 0; v < variables.length; v++) {
+            if (pruned[v]) continue;
+            int i = variables[v];
+            for (int slot = annotators.nextAvailable(i, 0); slot != -1; slot = annotators.nextAvailable(i, slot + 1)) {
+                if (!isRepresentative(i, slot, representatives)) continue;
+                legalMoves[cursor] = new QueryLaunch(i, annotators.getHuman(slot));
                 cursor++;
             }
         }
@@ -242,9 +395,38 @@ public class Game {
             }
         }
 
+        assert(cursor == numLegalMoves);
+
         return legalMoves;
     }
 
+    /**
+     * @return for each human slot, the first slot holding a human interchangeable with that one
+     */
+    private int[] representativeSlots() {
+        int[] representatives = new int[humansArrived];
+        for (int slot = 0; slot < humansArrived; slot++) {
+            representatives[slot] = slot;
+            HumanArrival human = annotators.getHuman(slot);
+            for (int other = 0; other < slot; other++) {
+                if (representatives[other] == other && human.isInterchangeableWith(annotators.getHuman(other))) {
+                    representatives[slot] = other;
+                    break;
+                }
+            }
+        }
+        return representatives;
+    }
+
+    /**
+     * @return whether a query about variable to the human in slot is the one we offer among all the equivalent ones
+     */
+    private boolean isRepresentative(int variable, int slot, int[] representatives) {
+        int representative = representatives[slot];
+        // Interchangeable humans are free for the same variables, but it's cheap to make sure
+        return representative == slot || annotators.nextAvailable(variable, representative) != representative;
+    }
+
     /**
      * Our simulation sometimes returns deterministic values. We don't want useless gameplayer branching on values that
      * we expect to always be the same.
@@ -255,13 +437,8 @@ public class Game {
 
         // If there was a human who left, then inevitably we have a number of query failures to deliver.
 
-        for (Event e : stack) {
-            if (e instanceof QueryLaunch) {
-                QueryLaunch ql = (QueryLaunch)e;
-                if (inFlightRequests.contains(ql) && !availableHumans.contains(ql.human)) {
-                    return true;
-                }
-            }
+        if (!orphanedRequests.isEmpty()) {
+            return true;
         }
 
         // If there are job postings, return an answer to one of those
@@ -292,15 +469,10 @@ public class Game {
 
         // If there was a human who left, then inevitably we have a number of query failures to deliver.
 
-        for (Event e : stack) {
-            if (e instanceof QueryLaunch) {
-                QueryLaunch ql = (QueryLaunch)e;
-                if (inFlightRequests.contains(ql) && !availableHumans.contains(ql.human)) {
-                    QueryFailure qf = new QueryFailure(ql);
-                    qf.timeSinceGameStart = timeSinceGameStart;
-                    return qf;
-                }
-            }
+        if (!orphanedRequests.isEmpty()) {
+            QueryFailure qf = new QueryFailure(orphanedRequests.firstEntry().getValue());
+            qf.timeSinceGameStart = timeSinceGameStart;
+            return qf;
         }
 
         // If there are job postings, return an answer to one of those
@@ -315,11 +487,15 @@ public class Game {
         // then pick the thing returning the soonest. Then we can draw a possible value for that response from
         // the marginals of the model.
 
-        // Draw the soonest returning query
+        // Draw the soonest returning query. The in-flight set iterates in identity hash order, so we draw in launch order
+        // instead, or the same random stream would give different games different outcomes from run to run.
+
+        QueryLaunch[] inFlight = inFlightRequests.toArray(new QueryLaunch[inFlightRequests.size()]);
+        Arrays.sort(inFlight, (a, b) -> Integer.compare(a.stackPosition, b.stackPosition));
 
         QueryLaunch soonestReturn = null;
         long soonestReturnTime = Long.MAX_VALUE;
-        for (QueryLaunch ql : inFlightRequests) {
+        for (QueryLaunch ql : inFlight) {
             long returnTime = ql.timeSinceGameStart + ql.human.delayModel.drawSample(r);
             if (returnTime < soonestReturnTime) {
                 soonestReturnTime = returnTime;
@@ -363,15 +539,10 @@ public class Game {
         // cancelled one at a time. To make sampling as efficient as possible, we impose a deterministic ordering on the
         // order in which those responses are cancelled: oldest first
 
-        for (Event e : stack) {
-            if (e instanceof QueryLaunch) {
-                QueryLaunch ql = (QueryLaunch)e;
-                if (inFlightRequests.contains(ql) && !availableHumans.contains(ql.human)) {
-                    QueryFailure qf = new QueryFailure(ql);
-                    qf.timeSinceGameStart = timeSinceGameStart;
-                    return new Event[]{qf};
-                }
-            }
+        if (!orphanedRequests.isEmpty()) {
+            QueryFailure qf = new QueryFailure(orphanedRequests.firstEntry().getValue());
+            qf.timeSinceGameStart = timeSinceGameStart;
+            return new Event[]{qf};
         }
 
         // Job postings always return before responses, in our sampled world
@@ -420,19 +591,56 @@ public class Game {
      * @return an array of thread safe copies of the current game
      */
     public Game[] getClones(int numClones) {
+        return getClones(numClones, null);
+    }
+
+    /**
+     * Has to be called after changing the model other than by pushing and popping events, like writing metadata that the
+     * human source reads, so that clones made from then on (including the ones in a ClonePool) get a fresh copy of the
+     * model. Nothing in this library changes a game's model that way, so this is for callers outside it that do.
+     * Everything else the game derives from the model, like the set of annotatable variables, is only worked out once,
+     * in the constructor, so this isn't a way to add or remove factors.
+     */
+    public void modelChanged() {
+        modelVersion++;
+        cloneBase = null;
+    }
+
+    /**
+     * Clones share a single model, with a GraphicalModelOverlay each for their own observations. If our model is already
+     * an overlay (because we're a clone ourselves), this returns it as is: GraphicalModelOverlay.over() gives every clone
+     * an overlay on the same base, with a copy of our changes, so overlays never stack. Otherwise we need a private copy
+     * of our model with no events pushed, which we keep until modelChanged() is called. Must be called with the stack
+     * empty.
+     */
+    private GraphicalModel getCloneBase() {
+        assert(stack.empty());
+        if (model instanceof GraphicalModelOverlay) return model;
+        if (cloneBase == null) cloneBase = model.cloneModel();
+        return cloneBase;
+    }
+
+    /**
+     * @param mappings if this isn't null, gets a map from the events on this game to their copies for each clone
+     */
+    Game[] getClones(int numClones, List<Map<Event,Event>> mappings) {
         List<Event> events = new ArrayList<>();
         events.addAll(stack);
         resetEvents();
 
+        GraphicalModel base = getCloneBase();
         Game[] clones = new Game[numClones];
         for (int i = 0; i < numClones; i++) {
-            clones[i] = new Game(model.cloneModel(), weights, humanProvider, humansAvailableServerSide);
+            clones[i] = new Game(GraphicalModelOverlay.over(base), weights, humanProvider, humansAvailableServerSide);
+            clones[i].marginalCache = marginalCache;
+            clones[i].actionFilter = actionFilter;
 
             Map<Event,Event> oldToNew = new IdentityHashMap<>();
             for (Event e : events) {
                 oldToNew.put(e, e.clone(oldToNew));
                 oldToNew.get(e).push(clones[i]);
             }
+            if (mappings != null) mappings.add(oldToNew);
         }
 
         for (Event e : events) e.push(this);
@@ -440,6 +648,304 @@ public class Game {
         return clones;
     }
 
+    // Tags for each kind of event, as written by writeToStream()
+
+    static final int QUERY_LAUNCH_EVENT = 1;
+    static final int QUERY_RESPONSE_EVENT = 2;
+    static final int QUERY_FAILURE_EVENT = 3;
+    static final int HUMAN_ARRIVAL_EVENT = 4;
+    static final int HUMAN_EXIT_EVENT = 5;
+    static final int HUMAN_JOB_POSTING_EVENT = 6;
+    static final int HUMAN_RELEASE_EVENT = 7;
+    static final int WAIT_EVENT = 8;
+    static final int TURN_IN_EVENT = 9;
+
+    /**
+     * Writes the model, the weights, the human provider, and the whole event stack to a stream, so that another process
+     * can read back an equivalent game with readFromStream(). Events that point at other events (like a QueryResponse
+     * pointing at its QueryLaunch) are written as positions on the stack. The HumanSource isn't written, since it's tied
+     * to this process.
+     *
+     * The human error tables have no serialization of their own, so we write them as factors in a carrier
+     * GraphicalModel. Delay distributions and the human provider have to be ones that know how to write themselves,
+     * which currently means DiscreteSetDistribution and ArtificialHumanAgreementDisagrementProvider, and the same goes
+     * for the action filter, which currently means ConfidenceActionFilter.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if something on the stack can't be written
+     */
+    public void writeToStream(OutputStream stream) throws IOException {
+        List<Event> events = new ArrayList<>();
+        events.addAll(stack);
+        resetEvents();
+
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+
+            model.writeToStream(stream);
+            weights.writeToStream(stream);
+            out.writeInt(humansAvailableServerSide);
+
+            // Collect everything that events share by reference, so we can write each of them once
+
+            Map<Event,Integer> stackIndex = new IdentityHashMap<>();
+            Map<ConcatVectorTable,Integer> tableIndex = new IdentityHashMap<>();
+            Map<ContinuousDistribution,Integer> distributionIndex = new IdentityHashMap<>();
+            GraphicalModel tableCarrier = new GraphicalModel();
+
+            if (humanProvider instanceof ArtificialHumanAgreementDisagrementProvider) {
+                distributionIndex.put(((ArtificialHumanAgreementDisagrementProvider)humanProvider).humanDelayDistribution, 0);
+            }
+            for (int i = 0; i < events.size(); i++) {
+                stackIndex.put(events.get(i), i);
+                if (events.get(i) instanceof HumanArrival) {
+                    HumanArrival ha = (HumanArrival)events.get(i);
+                    if (!distributionIndex.containsKey(ha.delayModel)) distributionIndex.put(ha.delayModel, distributionIndex.size());
+                    for (ConcatVectorTable table : ha.humanErrorModel) {
+                        if (table == null || tableIndex.containsKey(table)) continue;
+                        // Factors come back in no particular order, so each one carries its index in its neighbors
+                        int index = tableIndex.size();
+                        int[] neighbors = new int[table.getDimensions().length];
+                        for (int j = 0; j < neighbors.length; j++) neighbors[j] = index * neighbors.length + j;
+                        tableCarrier.addFactor(table, neighbors);
+                        tableIndex.put(table, index);
+                    }
+                }
+            }
+
+            tableCarrier.writeToStream(stream);
+            out.writeInt(tableIndex.size());
+
+            ContinuousDistribution[] distributions = new ContinuousDistribution[distributionIndex.size()];
+            for (Map.Entry<ContinuousDistribution,Integer> entry : distributionIndex.entrySet()) {
+                distributions[entry.getValue()] = entry.getKey();
+            }
+            out.writeInt(distributions.length);
+            for (ContinuousDistribution distribution : distributions) {
+                distribution.writeToStream(stream);
+            }
+
+            if (humanProvider == null) {
+                out.writeBoolean(false);
+            }
+            else if (humanProvider instanceof ArtificialHumanAgreementDisagrementProvider) {
+                ArtificialHumanAgreementDisagrementProvider provider = (ArtificialHumanAgreementDisagrementProvider)humanProvider;
+                out.writeBoolean(true);
+                provider.agreementVector.writeToStream(stream);
+                out.writeInt(provider.disagreementVectors.size());
+                for (Map.Entry<Integer,ConcatVector> entry : provider.disagreementVectors.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    entry.getValue().writeToStream(stream);
+                }
+            }
+            else {
+                throw new IOException("Don't know how to write a "+humanProvider.getClass().getName()+" to a stream");
+            }
+
+            if (actionFilter == null) {
+                out.writeBoolean(false);
+            }
+            else if (actionFilter instanceof ConfidenceActionFilter) {
+                out.writeBoolean(true);
+                out.writeDouble(((ConfidenceActionFilter)actionFilter).confidence);
+            }
+            else {
+                throw new IOException("Don't know how to write a "+actionFilter.getClass().getName()+" to a stream");
+            }
+
+            out.writeInt(events.size());
+            for (Event e : events) {
+                if (e instanceof QueryLaunch) {
+                    out.writeInt(QUERY_LAUNCH_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(((QueryLaunch)e).variable);
+                    out.writeInt(stackIndex.get(((QueryLaunch)e).human));
+                }
+                else if (e instanceof QueryResponse) {
+                    out.writeInt(QUERY_RESPONSE_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(stackIndex.get(((QueryResponse)e).request));
+                    out.writeInt(((QueryResponse)e).response);
+                }
+                else if (e instanceof QueryFailure) {
+                    out.writeInt(QUERY_FAILURE_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(stackIndex.get(((QueryFailure)e).request));
+                }
+                else if (e instanceof HumanArrival) {
+                    HumanArrival ha = (HumanArrival)e;
+                    out.writeInt(HUMAN_ARRIVAL_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(stackIndex.get(ha.respondingTo));
+                    out.writeInt(distributionIndex.get(ha.delayModel));
+                    out.writeInt(ha.humanErrorModel.length);
+                    for (ConcatVectorTable table : ha.humanErrorModel) {
+                        out.writeInt(table == null ? -1 : tableIndex.get(table));
+                    }
+                    out.writeInt(ha.metaData.size());
+                    for (Map.Entry<String,String> entry : ha.metaData.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue());
+                    }
+                }
+                else if (e instanceof HumanExit) {
+                    out.writeInt(HUMAN_EXIT_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(stackIndex.get(((HumanExit)e).human));
+                }
+                else if (e instanceof HumanJobPosting) {
+                    out.writeInt(HUMAN_JOB_POSTING_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                }
+                else if (e instanceof HumanRelease) {
+                    out.writeInt(HUMAN_RELEASE_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                    out.writeInt(stackIndex.get(((HumanRelease)e).human));
+                }
+                else if (e instanceof Wait) {
+                    out.writeInt(WAIT_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                }
+                else if (e instanceof TurnIn) {
+                    out.writeInt(TURN_IN_EVENT);
+                    out.writeLong(e.timeSinceGameStart);
+                }
+                else {
+                    throw new IOException("Don't know how to write a "+e.getClass().getName()+" to a stream");
+                }
+            }
+            out.flush();
+        }
+        finally {
+            for (Event e : events) e.push(this);
+        }
+    }
+
+    /**
+     * Reads back a game written with writeToStream(), with all of its events pushed. The game has no HumanSource.
+     *
+     * @param stream the stream to read from
+     * @return a new game, equivalent to the one that was written
+     * @throws IOException if we can't read, or the stream doesn't hold a game
+     */
+    public static Game readFromStream(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+
+        GraphicalModel model = GraphicalModel.readFromStream(stream);
+        ConcatVector weights = ConcatVector.readFromStream(stream);
+        int humansAvailableServerSide = in.readInt();
+
+        GraphicalModel tableCarrier = GraphicalModel.readFromStream(stream);
+        ConcatVectorTable[] tables = new ConcatVectorTable[in.readInt()];
+        for (GraphicalModel.Factor f : tableCarrier.factors) {
+            tables[f.neigborIndices[0] / f.neigborIndices.length] = f.featuresTable;
+        }
+
+        ContinuousDistribution[] distributions = new ContinuousDistribution[in.readInt()];
+        for (int i = 0; i < distributions.length; i++) {
+            distributions[i] = ContinuousDistribution.readFromStream(stream);
+        }
+
+        ArtificialHumanProvider humanProvider = null;
+        if (in.readBoolean()) {
+            ConcatVector agreementVector = ConcatVector.readFromStream(stream);
+            Map<Integer,ConcatVector> disagreementVectors = new HashMap<>();
+            int numDisagreementVectors = in.readInt();
+            for (int i = 0; i < numDisagreementVectors; i++) {
+                int size = in.readInt();
+                disagreementVectors.put(size, ConcatVector.readFromStream(stream));
+            }
+            humanProvider = new ArtificialHumanAgreementDisagrementProvider(agreementVector, disagreementVectors, distributions[0]);
+        }
+
+        Game game = new Game(model, weights, humanProvider, humansAvailableServerSide);
+        if (in.readBoolean()) game.actionFilter = new ConfidenceActionFilter(in.readDouble());
+
+        // Humans that shared an error model when they were written share one again, so that they're still
+        // interchangeable in getLegalMoves()
+        List<ConcatVectorTable[]> errorModels = new ArrayList<>();
+
+        Event[] events = new Event[in.readInt()];
+        for (int i = 0; i < events.length; i++) {
+            int type = in.readInt();
+            long timeSinceGameStart = in.readLong();
+            switch (type) {
+                case QUERY_LAUNCH_EVENT:
+                    int variable = in.readInt();
+                    events[i] = new QueryLaunch(variable, (HumanArrival)events[in.readInt()]);
+                    break;
+                case QUERY_RESPONSE_EVENT:
+                    QueryLaunch request = (QueryLaunch)events[in.readInt()];
+                    events[i] = new QueryResponse(request, in.readInt());
+                    break;
+                case QUERY_FAILURE_EVENT:
+                    events[i] = new QueryFailure((QueryLaunch)events[in.readInt()]);
+                    break;
+                case HUMAN_ARRIVAL_EVENT:
+                    HumanJobPosting job = (HumanJobPosting)events[in.readInt()];
+                    ContinuousDistribution delayModel = distributions[in.readInt()];
+                    ConcatVectorTable[] humanErrorModel = new ConcatVectorTable[in.readInt()];
+                    for (int j = 0; j < humanErrorModel.length; j++) {
+                        int table = in.readInt();
+                        humanErrorModel[j] = table == -1 ? null : tables[table];
+                    }
+                    ConcatVectorTable[] sharedErrorModel = null;
+                    for (ConcatVectorTable[] errorModel : errorModels) {
+                        if (Arrays.equals(errorModel, humanErrorModel)) sharedErrorModel = errorModel;
+                    }
+                    if (sharedErrorModel != null) humanErrorModel = sharedErrorModel;
+                    else errorModels.add(humanErrorModel);
+                    Map<String,String> metaData = new HashMap<>();
+                    int metaDataSize = in.readInt();
+                    for (int j = 0; j < metaDataSize; j++) {
+                        String key = in.readUTF();
+                        metaData.put(key, in.readUTF());
+                    }
+                    events[i] = new HumanArrival(humanErrorModel, delayModel, job, metaData);
+                    break;
+                case HUMAN_EXIT_EVENT:
+                    events[i] = new HumanExit((HumanArrival)events[in.readInt()]);
+                    break;
+                case HUMAN_JOB_POSTING_EVENT:
+                    events[i] = new HumanJobPosting();
+                    break;
+                case HUMAN_RELEASE_EVENT:
+                    events[i] = new HumanRelease((HumanArrival)events[in.readInt()]);
+                    break;
+                case WAIT_EVENT:
+                    events[i] = new Wait();
+                    break;
+                case TURN_IN_EVENT:
+                    events[i] = new TurnIn();
+                    break;
+                default:
+                    throw new IOException("Unrecognized event type "+type);
+            }
+            events[i].timeSinceGameStart = timeSinceGameStart;
+            events[i].push(game);
+        }
+
+        return game;
+    }
+
+    /**
+     * Called when a human leaves, so their in-flight queries become orphaned.
+     */
+    void orphanRequests(HumanArrival human) {
+        for (QueryLaunch ql : inFlightRequests) {
+            if (ql.human == human) orphanedRequests.put(ql.stackPosition, ql);
+        }
+    }
+
+    /**
+     * Called when a human's departure is popped, so their in-flight queries aren't orphaned any more.
+     */
+    void adoptRequests(HumanArrival human) {
+        for (QueryLaunch ql : inFlightRequests) {
+            if (ql.human == human) orphanedRequests.remove(ql.stackPosition);
+        }
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////
     // FRAME DEFINITIONS
     ////////////////////////////////////////////////////////////////////////////////////
@@ -457,12 +963,14 @@ public class Game {
 
         public void push(Game game) {
             game.stack.add(this);
+            game.inference.push(this);
             assert(timeSinceGameStart >= game.timeSinceGameStart);
             game.timeSinceGameStart = timeSinceGameStart;
         }
         public void pop(Game game) {
             assert(timeSinceGameStart == game.timeSinceGameStart);
             game.stack.pop();
+            game.inference.pop();
             assert(game.stack.empty() || game.stack.peek().timeSinceGameStart <= game.timeSinceGameStart);
             if (game.stack.empty()) {
                 game.timeSinceGameStart = 0;
@@ -496,6 +1004,9 @@ public class Game {
         public int variable;
         public HumanArrival human;
 
+        // Where this was pushed on the stack of the game it was pushed onto
+        int stackPosition = -1;
+
         public QueryLaunch(int variable, HumanArrival human) {
             this.variable = variable;
             this.human = human;
@@ -507,11 +1018,16 @@ public class Game {
 
             assert(!game.inFlightRequests.contains(this));
             game.inFlightRequests.add(this);
+            stackPosition = game.stack.size() - 1;
+            if (!game.availableHumans.contains(human)) game.orphanedRequests.put(stackPosition, this);
+
+            assert(game.annotators.isAnnotatable(variable));
+            assert(game.annotators.isAvailable(variable, human));
 
-            assert(game.availableAnnotators.containsKey(variable));
-            assert(game.availableAnnotators.get(variable).contains(human));
+            game.annotators.remove(variable, human);
 
-            game.availableAnnotators.get(variable).remove(human);
+            game.stateHash += inFlightKey();
+            human.historyHash += historyKey(QUERY_IN_FLIGHT, timeSinceGameStart);
         }
 
         @Override
@@ -520,11 +1036,26 @@ public class Game {
 
             assert(game.inFlightRequests.contains(this));
             game.inFlightRequests.remove(this);
+            game.orphanedRequests.remove(stackPosition);
+
+            assert(game.annotators.isAnnotatable(variable));
+            assert(!game.annotators.isAvailable(variable, human));
+
+            game.annotators.add(variable, human);
+
+            game.stateHash -= inFlightKey();
+            human.historyHash -= historyKey(QUERY_IN_FLIGHT, timeSinceGameStart);
+        }
 
-            assert(game.availableAnnotators.containsKey(variable));
-            assert(!game.availableAnnotators.get(variable).contains(human));
+        long inFlightKey() {
+            return zobristKey(QUERY_IN_FLIGHT, variable, human.slot, timeSinceGameStart);
+        }
 
-            game.availableAnnotators.get(variable).add(human);
+        /**
+         * Like the keys in the state hash, but without the human's slot, for their HumanArrival.historyHash.
+         */
+        long historyKey(int kind, long value) {
+            return zobristKey(kind, variable, 0, value);
         }
 
         @Override
@@ -579,6 +1110,7 @@ public class Game {
 
             assert(game.inFlightRequests.contains(request));
             game.inFlightRequests.remove(request);
+            game.orphanedRequests.remove(request.stackPosition);
 
             humanObservationVariable = game.usedObservationVariables.incrementAndGet();
 
@@ -598,6 +1130,9 @@ public class Game {
             assert(game.model.variableMetaData.size() <= humanObservationVariable);
             game.model.getVariableMetaDataByReference(humanObservationVariable).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "" + response);
             assert(game.model.variableMetaData.size() == humanObservationVariable + 1);
+
+            game.stateHash += zobristKey(QUERY_OBSERVED, request.variable, request.human.slot, response) - request.inFlightKey();
+            request.human.historyHash += request.historyKey(QUERY_OBSERVED, response) - request.historyKey(QUERY_IN_FLIGHT, request.timeSinceGameStart);
         }
 
         @Override
@@ -608,6 +1143,7 @@ public class Game {
 
             assert(!game.inFlightRequests.contains(request));
             game.inFlightRequests.add(request);
+            if (!game.availableHumans.contains(request.human)) game.orphanedRequests.put(request.stackPosition, request);
 
             // Remove the cached factor
 
@@ -620,6 +1156,9 @@ public class Game {
             assert(game.model.variableMetaData.size() == humanObservationVariable + 1);
             game.model.variableMetaData.remove(humanObservationVariable);
             assert(game.model.variableMetaData.size() == humanObservationVariable); // we clipped off the end
+
+            game.stateHash -= zobristKey(QUERY_OBSERVED, request.variable, request.human.slot, response) - request.inFlightKey();
+            request.human.historyHash -= request.historyKey(QUERY_OBSERVED, response) - request.historyKey(QUERY_IN_FLIGHT, request.timeSinceGameStart);
         }
 
         @Override
@@ -669,6 +1208,10 @@ public class Game {
 
             assert(game.inFlightRequests.contains(request));
             game.inFlightRequests.remove(request);
+            game.orphanedRequests.remove(request.stackPosition);
+
+            game.stateHash += zobristKey(QUERY_FAILED, request.variable, request.human.slot, 0) - request.inFlightKey();
+            request.human.historyHash += request.historyKey(QUERY_FAILED, 0) - request.historyKey(QUERY_IN_FLIGHT, request.timeSinceGameStart);
         }
 
         @Override
@@ -677,6 +1220,10 @@ public class Game {
 
             assert(!game.inFlightRequests.contains(request));
             game.inFlightRequests.add(request);
+            if (!game.availableHumans.contains(request.human)) game.orphanedRequests.put(request.stackPosition, request);
+
+            game.stateHash -= zobristKey(QUERY_FAILED, request.variable, request.human.slot, 0) - request.inFlightKey();
+            request.human.historyHash -= request.historyKey(QUERY_FAILED, 0) - request.historyKey(QUERY_IN_FLIGHT, request.timeSinceGameStart);
         }
 
         @Override
@@ -716,6 +1263,13 @@ public class Game {
         // that went into featurizing, so that refeaturizing the models is relatively easy in an offline setting.
         public Map<String,String> metaData = new HashMap<>();
 
+        // The order in which this human arrived in the game they were pushed onto, which identifies them in the state hash
+        public int slot = -1;
+
+        // A hash of everything that's happened to this human since they arrived (the queries they've been sent, what came
+        // of them, and whether they've left), kept up to date the same way as the game's state hash but without the slot
+        long historyHash = 0;
+
         public HumanArrival(ConcatVectorTable[] humanErrorModel, ContinuousDistribution delayModel, HumanJobPosting respondingTo, Map<String,String> metaData) {
             this.humanErrorModel = humanErrorModel;
             this.delayModel = delayModel;
@@ -733,12 +1287,16 @@ public class Game {
             assert(game.jobPostings.contains(respondingTo));
             game.jobPostings.remove(respondingTo);
 
+            slot = game.humansArrived++;
+            game.annotators.registerHuman(this);
+            assert(historyHash == 0);
             for (int i = 0; i < humanErrorModel.length; i++) {
-                if (humanErrorModel[i] != null && game.availableAnnotators.containsKey(i)) {
-                    assert(!game.availableAnnotators.get(i).contains(this));
-                    game.availableAnnotators.get(i).add(this);
+                if (humanErrorModel[i] != null && game.annotators.isAnnotatable(i)) {
+                    game.annotators.add(i, this);
                 }
             }
+
+            game.stateHash += zobristKey(HUMAN_ARRIVED, slot, 0, 0) - zobristKey(JOB_POSTING_OPEN, 0, 0, 0);
         }
 
         @Override
@@ -752,11 +1310,15 @@ public class Game {
             game.jobPostings.add(respondingTo);
 
             for (int i = 0; i < humanErrorModel.length; i++) {
-                if (humanErrorModel[i] != null && game.availableAnnotators.containsKey(i)) {
-                    assert(game.availableAnnotators.get(i).contains(this));
-                    game.availableAnnotators.get(i).remove(this);
+                if (humanErrorModel[i] != null && game.annotators.isAnnotatable(i)) {
+                    game.annotators.remove(i, this);
                 }
             }
+            game.annotators.forgetHuman(this);
+
+            game.stateHash -= zobristKey(HUMAN_ARRIVED, slot, 0, 0) - zobristKey(JOB_POSTING_OPEN, 0, 0, 0);
+            game.humansArrived--;
+            assert(slot == game.humansArrived);
         }
 
         @Override
@@ -764,6 +1326,19 @@ public class Game {
             return false;
         }
 
+        /**
+         * Two humans are interchangeable if they have the same error model and delay model (by reference, since that's
+         * how ArtificialHumanProviders share them), and the same history in this game, so that swapping them around
+         * wouldn't change anything about the game or the way it could play out.
+         *
+         * @param other another human in the same game
+         * @return whether sending a query to this human is equivalent to sending it to other
+         */
+        public boolean isInterchangeableWith(HumanArrival other) {
+            return humanErrorModel == other.humanErrorModel && delayModel == other.delayModel &&
+                    historyHash == other.historyHash;
+        }
+
         @Override
         public Event clone(Map<Event, Event> oldToNew) {
             HumanArrival ha = new HumanArrival(humanErrorModel, delayModel, (HumanJobPosting)oldToNew.get(respondingTo), metaData);
@@ -800,6 +1375,10 @@ public class Game {
 
             assert(game.availableHumans.contains(human));
             game.availableHumans.remove(human);
+            game.orphanRequests(human);
+
+            game.stateHash += zobristKey(HUMAN_DEPARTED, human.slot, 0, 0);
+            human.historyHash += zobristKey(HUMAN_DEPARTED, 0, 0, 0);
         }
 
         @Override
@@ -808,6 +1387,10 @@ public class Game {
 
             assert(!game.availableHumans.contains(human));
             game.availableHumans.add(human);
+            game.adoptRequests(human);
+
+            game.stateHash -= zobristKey(HUMAN_DEPARTED, human.slot, 0, 0);
+            human.historyHash -= zobristKey(HUMAN_DEPARTED, 0, 0, 0);
         }
 
         @Override
@@ -845,6 +1428,9 @@ public class Game {
 
             assert(!game.jobPostings.contains(this));
             game.jobPostings.add(this);
+            game.jobPostingsMade++;
+
+            game.stateHash += zobristKey(JOB_POSTING_MADE, 0, 0, 0) + zobristKey(JOB_POSTING_OPEN, 0, 0, 0);
         }
 
         @Override
@@ -853,6 +1439,9 @@ public class Game {
 
             assert(game.jobPostings.contains(this));
             game.jobPostings.remove(this);
+            game.jobPostingsMade--;
+
+            game.stateHash -= zobristKey(JOB_POSTING_MADE, 0, 0, 0) + zobristKey(JOB_POSTING_OPEN, 0, 0, 0);
         }
 
         @Override
@@ -893,6 +1482,10 @@ public class Game {
 
             assert(game.availableHumans.contains(human));
             game.availableHumans.remove(human);
+            game.orphanRequests(human);
+
+            game.stateHash += zobristKey(HUMAN_DEPARTED, human.slot, 0, 0);
+            human.historyHash += zobristKey(HUMAN_DEPARTED, 0, 0, 0);
         }
 
         @Override
@@ -901,6 +1494,10 @@ public class Game {
 
             assert(!game.availableHumans.contains(human));
             game.availableHumans.add(human);
+            game.adoptRequests(human);
+
+            game.stateHash -= zobristKey(HUMAN_DEPARTED, human.slot, 0, 0);
+            human.historyHash -= zobristKey(HUMAN_DEPARTED, 0, 0, 0);
         }
 
         @Override
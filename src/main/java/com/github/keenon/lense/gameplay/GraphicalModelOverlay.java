@@ -0,0 +1,260 @@
+package com.github.keenon.lense.gameplay;
+
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+
+/**
+ * A copy-on-write view of a GraphicalModel, so that lots of games (or lots of search threads) can share one base model
+ * in memory, rather than each needing their own cloneModel().
+ *
+ * Games change their models as they go, adding a factor and an observed variable for every QueryResponse and taking
+ * them off again when it's popped, and occasionally writing to variable metadata (like ModelQueryRecord does). Here the
+ * base model's factors and metadata are never touched: factors added to the overlay go into a small set of its own,
+ * factors removed from the base are remembered as removed, metadata for new variables is appended to a list of its
+ * own, and metadata for the base variables reads through to the base until the first write, when it gets copied.
+ *
+ * The base model must not change while overlays are using it. Removing entries through the keySet(), values() or
+ * entrySet() of a variable's metadata isn't supported, and neither is removing the base model's variables.
+ */
+public class GraphicalModelOverlay extends GraphicalModel {
+    final GraphicalModel base;
+
+    /**
+     * @param model the model to overlay. If this is itself an overlay, the new overlay shares its base and starts with a
+     *              copy of its changes.
+     * @return a model that starts out equal to model, and can be changed without changing model
+     */
+    public static GraphicalModelOverlay over(GraphicalModel model) {
+        if (model instanceof GraphicalModelOverlay) {
+            GraphicalModelOverlay overlay = (GraphicalModelOverlay)model;
+            GraphicalModelOverlay copy = new GraphicalModelOverlay(overlay.base);
+            copy.modelMetaData.putAll(overlay.modelMetaData);
+            ((FactorSet)copy.factors).copyChanges((FactorSet)overlay.factors);
+            ((MetaDataList)copy.variableMetaData).copyChanges((MetaDataList)overlay.variableMetaData);
+            return copy;
+        }
+        return new GraphicalModelOverlay(model);
+    }
+
+    GraphicalModelOverlay(GraphicalModel base) {
+        this.base = base;
+        // Model metadata is a handful of entries, so it's cheaper to just copy it
+        modelMetaData = new HashMap<>(base.modelMetaData);
+        factors = new FactorSet(base.factors);
+        variableMetaData = new MetaDataList(base.variableMetaData);
+    }
+
+    /**
+     * @return the model this is a view of
+     */
+    public GraphicalModel getBase() {
+        return base;
+    }
+
+    /**
+     * The base model's factors, less any that were removed, plus any that were added.
+     */
+    static class FactorSet extends AbstractSet<Factor> {
+        final Set<Factor> base;
+        final Set<Factor> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<Factor> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        FactorSet(Set<Factor> base) {
+            this.base = base;
+        }
+
+        void copyChanges(FactorSet other) {
+            added.addAll(other.added);
+            removed.addAll(other.removed);
+        }
+
+        @Override
+        public int size() {
+            return base.size() - removed.size() + added.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return added.contains(o) || (base.contains(o) && !removed.contains(o));
+        }
+
+        @Override
+        public boolean add(Factor factor) {
+            if (base.contains(factor)) return removed.remove(factor);
+            return added.add(factor);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (added.remove(o)) return true;
+            return base.contains(o) && removed.add((Factor)o);
+        }
+
+        @Override
+        public Iterator<Factor> iterator() {
+            return new Iterator<Factor>() {
+                final Iterator<Factor> baseIterator = base.iterator();
+                final Iterator<Factor> addedIterator = added.iterator();
+                Factor next = advance();
+                Factor last = null;
+                boolean lastWasAdded = false;
+
+                private Factor advance() {
+                    while (baseIterator.hasNext()) {
+                        Factor f = baseIterator.next();
+                        if (!removed.contains(f)) return f;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null || addedIterator.hasNext();
+                }
+
+                @Override
+                public Factor next() {
+                    if (next != null) {
+                        last = next;
+                        lastWasAdded = false;
+                        next = advance();
+                        return last;
+                    }
+                    last = addedIterator.next();
+                    lastWasAdded = true;
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) throw new IllegalStateException();
+                    if (lastWasAdded) addedIterator.remove();
+                    else removed.add(last);
+                    last = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Metadata for the base model's variables, copied on first write, followed by metadata for any variables added since.
+     */
+    static class MetaDataList extends AbstractList<Map<String,String>> {
+        final List<Map<String,String>> base;
+        final CopyOnWriteMap[] views;
+        final List<Map<String,String>> appended = new ArrayList<>();
+
+        MetaDataList(List<Map<String,String>> base) {
+            this.base = base;
+            views = new CopyOnWriteMap[base.size()];
+        }
+
+        void copyChanges(MetaDataList other) {
+            for (int i = 0; i < views.length; i++) {
+                if (other.views[i] != null && other.views[i].own != null) {
+                    views[i] = new CopyOnWriteMap(base.get(i));
+                    views[i].own = new HashMap<>(other.views[i].own);
+                }
+            }
+            for (Map<String,String> map : other.appended) {
+                appended.add(new HashMap<>(map));
+            }
+        }
+
+        @Override
+        public int size() {
+            return views.length + appended.size();
+        }
+
+        @Override
+        public Map<String,String> get(int index) {
+            if (index >= views.length) return appended.get(index - views.length);
+            if (views[index] == null) views[index] = new CopyOnWriteMap(base.get(index));
+            return views[index];
+        }
+
+        @Override
+        public Map<String,String> set(int index, Map<String,String> element) {
+            if (index >= views.length) return appended.set(index - views.length, element);
+            Map<String,String> previous = get(index);
+            views[index] = new CopyOnWriteMap(element);
+            views[index].own = element;
+            return previous;
+        }
+
+        @Override
+        public void add(int index, Map<String,String> element) {
+            if (index < views.length) throw new UnsupportedOperationException("Can't insert before the base model's variables");
+            appended.add(index - views.length, element);
+        }
+
+        @Override
+        public Map<String,String> remove(int index) {
+            if (index < views.length) throw new UnsupportedOperationException("Can't remove the base model's variables");
+            return appended.remove(index - views.length);
+        }
+    }
+
+    /**
+     * Reads through to a map in the base model until the first write, and then to a copy of its own.
+     */
+    static class CopyOnWriteMap extends AbstractMap<String,String> {
+        final Map<String,String> base;
+        Map<String,String> own = null;
+
+        CopyOnWriteMap(Map<String,String> base) {
+            this.base = base;
+        }
+
+        private Map<String,String> current() {
+            return own != null ? own : base;
+        }
+
+        private Map<String,String> writable() {
+            if (own == null) own = new HashMap<>(base);
+            return own;
+        }
+
+        @Override
+        public int size() {
+            return current().size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return current().containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return current().get(key);
+        }
+
+        @Override
+        public Set<Entry<String,String>> entrySet() {
+            return Collections.unmodifiableMap(current()).entrySet();
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return writable().put(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (!current().containsKey(key)) return null;
+            return writable().remove(key);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends String> m) {
+            writable().putAll(m);
+        }
+
+        @Override
+        public void clear() {
+            if (!current().isEmpty()) writable().clear();
+        }
+    }
+}
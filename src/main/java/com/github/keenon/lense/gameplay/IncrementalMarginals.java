@@ -0,0 +1,585 @@
+package com.github.keenon.lense.gameplay;
+
+import com.github.keenon.loglinear.inference.CliqueTree;
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.ConcatVectorTable;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the marginals of a Game in step with its event stack, so that we only run full inference when we really have
+ * to.
+ *
+ * There is one frame of marginals per depth of the stack. Most events (launches, waits, arrivals, failures) don't touch
+ * the model at all, so their frame is just a reference to the frame below. A QueryResponse adds a single observed
+ * factor hanging off of one variable, which multiplies that variable's marginal by the likelihood of the response.
+ *
+ * If the base model's factor graph is a forest (no cycles, counting factors as nodes, which covers linear chain and
+ * tree shaped CRFs), then we can push that change out to the rest of the model exactly, without the CliqueTree. On a
+ * tree, everything on the far side of a factor only hears about the observation through the variable we entered the
+ * factor by, so each factor's joint marginal just gets rescaled by how much that variable's marginal changed, and the
+ * factor's other variables get their new marginals by summing out the rescaled joint. Walking outward from the
+ * observed variable like that touches each factor in its component once. To start it off, we keep the joint marginal
+ * of every factor in every frame, and compute the base frame ourselves by sum-product.
+ *
+ * On models with cycles we only keep singleton marginals. A response on a variable that shares no factors with any
+ * other variable is still exact and local, but responses on connected variables force us back to the CliqueTree.
+ *
+ * Frames are computed lazily, and discarded in stack order as events are popped, so an MCTS playout that pushes a few
+ * dozen events and then pops them all back off only pays for the inference it actually asks for.
+ *
+ * The arrays handed out are shared between frames, so callers must treat them as read-only.
+ */
+public class IncrementalMarginals {
+    Game game;
+
+    // Whether each variable in the base model lives in a component all by itself
+    boolean[] isolated;
+    // Whether every variable we report marginals for is isolated, which makes the MAP just the per-variable argmax
+    boolean fullyFactored;
+
+    // Whether the base model's factor graph has no cycles, in which case every response can be propagated exactly
+    boolean forest;
+    // The base model's factors over more than one variable, as their tables, their neighbors, their dimensions and, for
+    // each variable, the indices of the factors it's in. Only filled in if the model is a forest.
+    ConcatVectorTable[] factorTables;
+    int[][] factorNeighbors;
+    int[][] factorDimensions;
+    int[][] variableFactors;
+
+    // Frames, indexed by stack depth. Depth 0 is the empty stack. Factor frames hold the joint marginal of every factor
+    // over more than one variable, flattened with the last neighbor varying fastest, and are only kept for forests.
+    double[][][] frames = new double[16][][];
+    double[][][] factorFrames = new double[16][][];
+    Game.Event[] events = new Game.Event[16];
+    boolean[] derivable = new boolean[16];
+    int depth = 0;
+
+    // The number of times we've had to fall back to the CliqueTree, which tests use to check that we don't
+    int fullInferences = 0;
+
+    public IncrementalMarginals(Game game) {
+        this.game = game;
+
+        isolated = new boolean[game.variableSizes.length];
+        Arrays.fill(isolated, true);
+        for (GraphicalModel.Factor f : game.model.factors) {
+            for (int n : f.neigborIndices) {
+                if (n >= isolated.length) continue;
+                for (int m : f.neigborIndices) {
+                    if (m != n) isolated[n] = false;
+                }
+            }
+        }
+
+        fullyFactored = true;
+        for (int i = 0; i < isolated.length; i++) {
+            if (game.variableSizes[i] != -1 && !isolated[i]) fullyFactored = false;
+        }
+
+        forest = indexFactorForest();
+    }
+
+    /**
+     * Records that an event has been added to the top of the stack. This has to be cheap, since it happens on every push
+     * of every playout, so all the real work is deferred until someone asks for marginals.
+     *
+     * @param e the event that was just pushed
+     */
+    public void push(Game.Event e) {
+        depth++;
+        if (depth >= frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            factorFrames = Arrays.copyOf(factorFrames, factorFrames.length * 2);
+            events = Arrays.copyOf(events, events.length * 2);
+            derivable = Arrays.copyOf(derivable, derivable.length * 2);
+        }
+        frames[depth] = null;
+        factorFrames[depth] = null;
+        events[depth] = e;
+        if (e instanceof Game.QueryResponse) {
+            Game.QueryResponse qr = (Game.QueryResponse)e;
+            derivable[depth] = qr.request.variable < isolated.length && (forest || isolated[qr.request.variable]);
+        }
+        else {
+            derivable[depth] = true;
+        }
+    }
+
+    /**
+     * Drops the frame for the event on the top of the stack.
+     */
+    public void pop() {
+        assert(depth > 0);
+        frames[depth] = null;
+        factorFrames[depth] = null;
+        events[depth] = null;
+        depth--;
+    }
+
+    /**
+     * @return the marginals of the model at the current top of the stack, clipped to the original variables
+     */
+    public double[][] getMarginals() {
+        if (frames[depth] != null) return frames[depth];
+
+        // On a forest we can always build up from the base frame, which only depends on the base model
+
+        if (forest && frames[0] == null) {
+            sumProduct();
+        }
+
+        // Walk down to the nearest frame we can build on
+
+        int base = depth;
+        while (base > 0 && frames[base] == null && derivable[base]) base--;
+
+        if (frames[base] == null) {
+            // Something between here and the nearest cached frame needs full inference, and the model only reflects the
+            // top of the stack, so that's the only frame we can compute directly. Another order of the same
+            // observations may have already paid for it, though.
+            if (game.marginalCache == null) {
+                frames[depth] = fullInference();
+            }
+            else {
+                MarginalCache.ObservationSet key = game.marginalCache.getKey(observations());
+                double[][] marginals = game.marginalCache.get(key);
+                if (marginals == null) {
+                    marginals = fullInference();
+                    game.marginalCache.put(key, marginals);
+                }
+                frames[depth] = marginals;
+            }
+            return frames[depth];
+        }
+
+        double[][] cursor = frames[base];
+        double[][] factorCursor = factorFrames[base];
+        for (int i = base + 1; i <= depth; i++) {
+            if (events[i] instanceof Game.QueryResponse) {
+                Game.QueryResponse qr = (Game.QueryResponse)events[i];
+                if (forest) {
+                    double[][][] updated = propagate(cursor, factorCursor, qr);
+                    cursor = updated[0];
+                    factorCursor = updated[1];
+                }
+                else {
+                    cursor = observe(cursor, qr);
+                }
+            }
+            frames[i] = cursor;
+            factorFrames[i] = factorCursor;
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the MAP assignment at the current top of the stack, clipped to the original variables
+     */
+    public int[] getMAP() {
+        if (fullyFactored) {
+            double[][] marginals = getMarginals();
+            int[] map = new int[marginals.length];
+            boolean complete = true;
+            for (int i = 0; i < marginals.length; i++) {
+                if (game.variableSizes[i] == -1) continue;
+                if (marginals[i] == null) {
+                    complete = false;
+                    break;
+                }
+                for (int j = 1; j < marginals[i].length; j++) {
+                    if (marginals[i][j] > marginals[i][map[i]]) map[i] = j;
+                }
+            }
+            if (complete) return map;
+        }
+
+        int[] map = game.tree.calculateMAP();
+        int[] clippedMap = new int[game.variableSizes.length];
+        System.arraycopy(map, 0, clippedMap, 0, game.variableSizes.length);
+        return clippedMap;
+    }
+
+    private List<Game.QueryResponse> observations() {
+        List<Game.QueryResponse> observations = new ArrayList<>();
+        for (int i = 1; i <= depth; i++) {
+            if (events[i] instanceof Game.QueryResponse) observations.add((Game.QueryResponse)events[i]);
+        }
+        return observations;
+    }
+
+    private double[][] fullInference() {
+        fullInferences++;
+        double[][] marginals = game.tree.calculateMarginalsJustSingletons();
+        double[][] clippedMarginals = new double[game.variableSizes.length][];
+        System.arraycopy(marginals, 0, clippedMarginals, 0, game.variableSizes.length);
+        return clippedMarginals;
+    }
+
+    /**
+     * Conditions an isolated variable on a single human response. Since the variable shares no factors with the rest of
+     * the model, this is just Bayes rule on the one variable.
+     */
+    private double[][] observe(double[][] marginals, Game.QueryResponse qr) {
+        int variable = qr.request.variable;
+        double[] prior = marginals[variable];
+        if (prior == null) return marginals;
+
+        double[][] updated = new double[marginals.length][];
+        System.arraycopy(marginals, 0, updated, 0, marginals.length);
+        updated[variable] = posterior(prior, qr);
+        return updated;
+    }
+
+    /**
+     * @return prior times the likelihood of a human's response, renormalized
+     */
+    private double[] posterior(double[] prior, Game.QueryResponse qr) {
+        int variable = qr.request.variable;
+        ConcatVectorTable errorModel = qr.request.human.humanErrorModel[variable];
+        ConcatVector weights = game.weights;
+
+        double[] logLikelihood = new double[prior.length];
+        double maxLogLikelihood = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < prior.length; i++) {
+            logLikelihood[i] = weights.dotProduct(errorModel.getAssignmentValue(new int[]{i, qr.response}).get());
+            maxLogLikelihood = Math.max(maxLogLikelihood, logLikelihood[i]);
+        }
+
+        double[] posterior = new double[prior.length];
+        for (int i = 0; i < prior.length; i++) {
+            posterior[i] = prior[i] * Math.exp(logLikelihood[i] - maxLogLikelihood);
+        }
+        return normalize(posterior);
+    }
+
+    /**
+     * Conditions a forest shaped model on a single human response, by walking outward from the observed variable and
+     * rescaling each factor's joint marginal by the change in the marginal of the variable we came in by.
+     *
+     * @return the new singleton marginals and the new factor marginals
+     */
+    private double[][][] propagate(double[][] marginals, double[][] factorMarginals, Game.QueryResponse qr) {
+        int variable = qr.request.variable;
+        if (marginals[variable] == null) return new double[][][]{marginals, factorMarginals};
+
+        double[][] updated = new double[marginals.length][];
+        System.arraycopy(marginals, 0, updated, 0, marginals.length);
+        double[][] updatedFactors = new double[factorMarginals.length][];
+        System.arraycopy(factorMarginals, 0, updatedFactors, 0, factorMarginals.length);
+
+        updated[variable] = posterior(marginals[variable], qr);
+
+        // Each entry is a variable whose marginal just changed, and the factor we reached it through, if any. Since the
+        // graph is a forest, we never reach a variable or a factor twice.
+
+        int[] queue = new int[2 * Math.max(1, marginals.length)];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = variable;
+        queue[tail++] = -1;
+
+        while (head < tail) {
+            int v = queue[head++];
+            int from = queue[head++];
+
+            double[] ratio = new double[marginals[v].length];
+            for (int x = 0; x < ratio.length; x++) {
+                ratio[x] = marginals[v][x] > 0 ? updated[v][x] / marginals[v][x] : 0.0;
+            }
+
+            for (int f : variableFactors[v]) {
+                if (f == from) continue;
+                int[] neighbors = factorNeighbors[f];
+                int[] dimensions = factorDimensions[f];
+                int position = positionOf(neighbors, v);
+
+                double[] joint = factorMarginals[f].clone();
+                int stride = strideOf(dimensions, position);
+                for (int k = 0; k < joint.length; k++) {
+                    joint[k] *= ratio[(k / stride) % dimensions[position]];
+                }
+                updatedFactors[f] = normalize(joint);
+
+                for (int q = 0; q < neighbors.length; q++) {
+                    if (q == position) continue;
+                    updated[neighbors[q]] = normalize(sumOut(joint, dimensions, q));
+                    if (tail + 2 > queue.length) queue = Arrays.copyOf(queue, queue.length * 2);
+                    queue[tail++] = neighbors[q];
+                    queue[tail++] = f;
+                }
+            }
+        }
+
+        return new double[][][]{updated, updatedFactors};
+    }
+
+    /**
+     * Checks whether the base model's factor graph is a forest, and if it is, indexes its factors over more than one
+     * variable for propagate().
+     */
+    private boolean indexFactorForest() {
+        int numVariables = game.variableSizes.length;
+        List<GraphicalModel.Factor> factors = new ArrayList<>();
+        for (GraphicalModel.Factor f : game.model.factors) {
+            for (int n : f.neigborIndices) {
+                if (n >= numVariables) return false;
+            }
+            if (f.neigborIndices.length > 1) factors.add(f);
+        }
+
+        // Union-find over variables and factors together, which finds a cycle as soon as an edge joins two nodes that
+        // are already connected. That includes a factor that lists the same variable twice.
+
+        int[] parents = new int[numVariables + factors.size()];
+        for (int i = 0; i < parents.length; i++) parents[i] = i;
+        int[] degree = new int[numVariables];
+        for (int f = 0; f < factors.size(); f++) {
+            for (int n : factors.get(f).neigborIndices) {
+                int a = find(parents, numVariables + f);
+                int b = find(parents, n);
+                if (a == b) return false;
+                parents[a] = b;
+                degree[n]++;
+            }
+        }
+
+        factorTables = new ConcatVectorTable[factors.size()];
+        factorNeighbors = new int[factors.size()][];
+        factorDimensions = new int[factors.size()][];
+        variableFactors = new int[numVariables][];
+        for (int i = 0; i < numVariables; i++) variableFactors[i] = new int[degree[i]];
+        int[] cursors = new int[numVariables];
+        for (int f = 0; f < factors.size(); f++) {
+            factorTables[f] = factors.get(f).featuresTable;
+            factorNeighbors[f] = factors.get(f).neigborIndices;
+            factorDimensions[f] = factors.get(f).featuresTable.getDimensions();
+            for (int n : factorNeighbors[f]) variableFactors[n][cursors[n]++] = f;
+        }
+        return true;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Computes the base frame of a forest shaped model, singletons and factor joints both, by sum-product. Each tree is
+     * rooted at its lowest numbered variable: messages go up to the root, and then back down.
+     */
+    private void sumProduct() {
+        int numVariables = game.variableSizes.length;
+        int numFactors = factorNeighbors.length;
+
+        // The local evidence for each variable: its unary factors, and its observed value if the base model has one
+
+        double[][] local = new double[numVariables][];
+        for (int v = 0; v < numVariables; v++) {
+            if (game.variableSizes[v] < 1) continue;
+            local[v] = new double[game.variableSizes[v]];
+            String observed = v < game.model.variableMetaData.size() ?
+                    game.model.variableMetaData.get(v).get(CliqueTree.VARIABLE_OBSERVED_VALUE) : null;
+            if (observed != null) local[v][Integer.parseInt(observed)] = 1.0;
+            else Arrays.fill(local[v], 1.0);
+        }
+        for (GraphicalModel.Factor f : game.model.factors) {
+            if (f.neigborIndices.length != 1) continue;
+            double[] potential = potential(f.featuresTable);
+            int v = f.neigborIndices[0];
+            for (int x = 0; x < local[v].length; x++) local[v][x] *= potential[x];
+            normalize(local[v]);
+        }
+
+        double[][] potentials = new double[numFactors][];
+        for (int f = 0; f < numFactors; f++) potentials[f] = potential(factorTables[f]);
+
+        // Lay each tree out breadth first from its root, recording the parent factor of every variable and the parent
+        // variable of every factor. Factors get ids after the variables.
+
+        int[] order = new int[numVariables + numFactors];
+        int[] parent = new int[numVariables + numFactors];
+        boolean[] seen = new boolean[numVariables + numFactors];
+        int size = 0;
+        for (int root = 0; root < numVariables; root++) {
+            if (local[root] == null || seen[root]) continue;
+            seen[root] = true;
+            parent[root] = -1;
+            order[size++] = root;
+            for (int k = size - 1; k < size; k++) {
+                int node = order[k];
+                if (node < numVariables) {
+                    for (int f : variableFactors[node]) {
+                        if (seen[numVariables + f]) continue;
+                        seen[numVariables + f] = true;
+                        parent[numVariables + f] = node;
+                        order[size++] = numVariables + f;
+                    }
+                }
+                else {
+                    for (int n : factorNeighbors[node - numVariables]) {
+                        if (seen[n]) continue;
+                        seen[n] = true;
+                        parent[n] = node - numVariables;
+                        order[size++] = n;
+                    }
+                }
+            }
+        }
+
+        // Upward pass: up[v] is the message from variable v to its parent factor, and up[numVariables + f] is the
+        // message from factor f to its parent variable
+
+        double[][] up = new double[numVariables + numFactors][];
+        for (int k = size - 1; k >= 0; k--) {
+            int node = order[k];
+            if (node < numVariables) {
+                double[] message = local[node].clone();
+                for (int f : variableFactors[node]) {
+                    if (f == parent[node]) continue;
+                    multiplyInto(message, up[numVariables + f]);
+                }
+                up[node] = normalize(message);
+            }
+            else {
+                int f = node - numVariables;
+                up[node] = normalize(sumOut(factorTimesMessages(f, potentials[f], parent[node], up, null, -1),
+                        factorDimensions[f], positionOf(factorNeighbors[f], parent[node])));
+            }
+        }
+
+        // Downward pass: down[v] is the message into variable v from its parent factor, and down[numVariables + f] is
+        // the message into factor f from its parent variable. Beliefs fall out as we go.
+
+        double[][] down = new double[numVariables + numFactors][];
+        double[][] marginals = new double[numVariables][];
+        double[][] factorMarginals = new double[numFactors][];
+        for (int k = 0; k < size; k++) {
+            int node = order[k];
+            if (node < numVariables) {
+                double[] belief = local[node].clone();
+                if (down[node] != null) multiplyInto(belief, down[node]);
+                for (int f : variableFactors[node]) {
+                    if (f == parent[node]) continue;
+                    multiplyInto(belief, up[numVariables + f]);
+                }
+                marginals[node] = normalize(belief.clone());
+
+                // What each child factor hears from us is our belief without its own message
+                for (int f : variableFactors[node]) {
+                    if (f == parent[node]) continue;
+                    double[] message = local[node].clone();
+                    if (down[node] != null) multiplyInto(message, down[node]);
+                    for (int g : variableFactors[node]) {
+                        if (g == parent[node] || g == f) continue;
+                        multiplyInto(message, up[numVariables + g]);
+                    }
+                    down[numVariables + f] = normalize(message);
+                }
+            }
+            else {
+                int f = node - numVariables;
+                factorMarginals[f] = normalize(factorTimesMessages(f, potentials[f], -1, up, down[node], parent[node]));
+                for (int q = 0; q < factorNeighbors[f].length; q++) {
+                    int child = factorNeighbors[f][q];
+                    if (child == parent[node]) continue;
+                    down[child] = normalize(sumOut(factorTimesMessages(f, potentials[f], child, up, down[node], parent[node]),
+                            factorDimensions[f], q));
+                }
+            }
+        }
+
+        frames[0] = marginals;
+        factorFrames[0] = factorMarginals;
+    }
+
+    /**
+     * @param skip a neighbor whose upward message to leave out, or -1
+     * @param parentMessage the message from the factor's parent variable to multiply in, or null
+     * @return a factor's potential times the upward messages of its children (other than skip), and parentMessage
+     */
+    private double[] factorTimesMessages(int f, double[] potential, int skip, double[][] up, double[] parentMessage, int parentVariable) {
+        int[] neighbors = factorNeighbors[f];
+        int[] dimensions = factorDimensions[f];
+        double[] result = potential.clone();
+        for (int q = 0; q < neighbors.length; q++) {
+            double[] message;
+            if (neighbors[q] == parentVariable) message = parentMessage;
+            else if (neighbors[q] == skip) message = null;
+            else message = up[neighbors[q]];
+            if (message == null) continue;
+            int stride = strideOf(dimensions, q);
+            for (int k = 0; k < result.length; k++) {
+                result[k] *= message[(k / stride) % dimensions[q]];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return exp(weights . features) for every assignment of a table, scaled so the largest is 1
+     */
+    private double[] potential(ConcatVectorTable table) {
+        int[] dimensions = table.getDimensions();
+        int size = 1;
+        for (int d : dimensions) size *= d;
+        double[] logPotential = new double[size];
+        double max = Double.NEGATIVE_INFINITY;
+        for (int[] assignment : table) {
+            int k = 0;
+            for (int q = 0; q < dimensions.length; q++) k = k * dimensions[q] + assignment[q];
+            logPotential[k] = game.weights.dotProduct(table.getAssignmentValue(assignment).get());
+            max = Math.max(max, logPotential[k]);
+        }
+        double[] potential = new double[size];
+        for (int k = 0; k < size; k++) potential[k] = Math.exp(logPotential[k] - max);
+        return potential;
+    }
+
+    private static int positionOf(int[] neighbors, int variable) {
+        for (int q = 0; q < neighbors.length; q++) {
+            if (neighbors[q] == variable) return q;
+        }
+        throw new IllegalStateException("Variable "+variable+" isn't a neighbor of this factor");
+    }
+
+    /**
+     * @return the distance in a flattened table between consecutive values of the neighbor at position
+     */
+    private static int strideOf(int[] dimensions, int position) {
+        int stride = 1;
+        for (int q = position + 1; q < dimensions.length; q++) stride *= dimensions[q];
+        return stride;
+    }
+
+    /**
+     * @return a flattened table summed down to the neighbor at position
+     */
+    private static double[] sumOut(double[] table, int[] dimensions, int position) {
+        double[] result = new double[dimensions[position]];
+        int stride = strideOf(dimensions, position);
+        for (int k = 0; k < table.length; k++) {
+            result[(k / stride) % dimensions[position]] += table[k];
+        }
+        return result;
+    }
+
+    private static void multiplyInto(double[] into, double[] by) {
+        for (int x = 0; x < into.length; x++) into[x] *= by[x];
+    }
+
+    private static double[] normalize(double[] distribution) {
+        double sum = 0.0;
+        for (double p : distribution) sum += p;
+        if (sum > 0) {
+            for (int i = 0; i < distribution.length; i++) distribution[i] /= sum;
+        }
+        return distribution;
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.keenon.lense.gameplay;
+
+import com.github.keenon.loglinear.model.ConcatVectorTable;
+
+import java.util.*;
+
+/**
+ * A bounded, thread-safe cache of marginals for a single base model, keyed by the set of human observations that have
+ * been added to it.
+ *
+ * Marginals only depend on which observations have been made, not the order they arrived in, so the key is the multiset
+ * of (variable, response, human error model) triples. During search many playouts reach the same observations in a
+ * different order, and with this they only pay for inference once. A Game shares its cache with all of its clones, so
+ * every search thread benefits.
+ *
+ * Entries are evicted least-recently-used first once the cache reaches capacity.
+ */
+public class MarginalCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    final int capacity;
+    final LinkedHashMap<ObservationSet, double[][]> cache;
+
+    // Sequence numbers for the human error models we've seen, in the order we first saw them, which give keys a total
+    // order over error models that doesn't depend on where they happen to live in memory
+    final IdentityHashMap<ConcatVectorTable, Integer> errorModelIds = new IdentityHashMap<>();
+
+    long hits = 0;
+    long misses = 0;
+
+    public MarginalCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MarginalCache(int capacity) {
+        this.capacity = capacity;
+        cache = new LinkedHashMap<ObservationSet, double[][]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObservationSet, double[][]> eldest) {
+                return size() > MarginalCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param observations the QueryResponses currently on the stack, in any order
+     * @return the key for those observations, which is the same for every order they could have arrived in
+     */
+    public ObservationSet getKey(List<Game.QueryResponse> observations) {
+        return new ObservationSet(observations, this);
+    }
+
+    /**
+     * @return the sequence number of an error model, assigning it the next one if we haven't seen it before
+     */
+    synchronized int getErrorModelId(ConcatVectorTable errorModel) {
+        Integer id = errorModelIds.get(errorModel);
+        if (id == null) {
+            id = errorModelIds.size();
+            errorModelIds.put(errorModel, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param key the observations made so far
+     * @return the cached marginals for that set of observations, or null if we haven't seen it (recently)
+     */
+    public synchronized double[][] get(ObservationSet key) {
+        double[][] marginals = cache.get(key);
+        if (marginals == null) misses++;
+        else hits++;
+        return marginals;
+    }
+
+    /**
+     * @param key the observations made so far
+     * @param marginals the marginals under those observations, which must not be modified after being cached
+     */
+    public synchronized void put(ObservationSet key, double[][] marginals) {
+        cache.put(key, marginals);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        errorModelIds.clear();
+    }
+
+    /**
+     * An order independent multiset of observations, kept sorted by (variable, response, error model). Human error
+     * models are identified by their sequence number in the cache that made the key, since clones of a Game share error
+     * models with the original. That makes the sort a total order, so every ordering of the same observations comes out
+     * identical.
+     */
+    public static class ObservationSet {
+        final int[] variables;
+        final int[] errorModels;
+        final int[] responses;
+        final int hash;
+
+        /**
+         * @param observations the QueryResponses currently on the stack, in any order
+         * @param ids the cache that assigns sequence numbers to error models
+         */
+        ObservationSet(List<Game.QueryResponse> observations, MarginalCache ids) {
+            int[][] keys = new int[observations.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                Game.QueryResponse qr = observations.get(i);
+                keys[i] = new int[]{qr.request.variable, qr.response, ids.getErrorModelId(errorModelOf(qr))};
+            }
+            Arrays.sort(keys, (a, b) -> {
+                for (int j = 0; j < a.length; j++) {
+                    if (a[j] != b[j]) return Integer.compare(a[j], b[j]);
+                }
+                return 0;
+            });
+
+            variables = new int[keys.length];
+            errorModels = new int[keys.length];
+            responses = new int[keys.length];
+
+            int h = 0;
+            for (int i = 0; i < keys.length; i++) {
+                variables[i] = keys[i][0];
+                responses[i] = keys[i][1];
+                errorModels[i] = keys[i][2];
+                h = 31 * h + (variables[i] * 7919 + responses[i]) * 31 + errorModels[i];
+            }
+            hash = h;
+        }
+
+        private static ConcatVectorTable errorModelOf(Game.QueryResponse qr) {
+            return qr.request.human.humanErrorModel[qr.request.variable];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ObservationSet)) return false;
+            ObservationSet os = (ObservationSet)o;
+            if (os.hash != hash || os.variables.length != variables.length) return false;
+            for (int i = 0; i < variables.length; i++) {
+                if (os.variables[i] != variables[i]) return false;
+                if (os.responses[i] != responses[i]) return false;
+                if (os.errorModels[i] != errorModels[i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
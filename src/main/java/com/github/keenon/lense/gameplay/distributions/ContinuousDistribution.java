@@ -1,6 +1,12 @@
 package com.github.keenon.lense.gameplay.distributions;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by keenon on 9/25/15.
@@ -9,4 +15,75 @@ import java.util.Random;
  */
 public abstract class ContinuousDistribution {
     public abstract long drawSample(Random r);
+
+    private volatile double mean = Double.NaN;
+
+    /**
+     * Subclasses that know their mean in closed form should override this. By default we estimate it once from a fixed
+     * number of samples, with a fixed seed so that the estimate is repeatable.
+     *
+     * @return the expected value of a sample
+     */
+    public double getMean() {
+        if (Double.isNaN(mean)) {
+            Random r = new Random(42);
+            double sum = 0.0;
+            for (int i = 0; i < 1000; i++) sum += drawSample(r);
+            mean = sum / 1000;
+        }
+        return mean;
+    }
+
+    /**
+     * Reads the body of one kind of distribution, after readFromStream() has read its tag.
+     */
+    @FunctionalInterface
+    public interface StreamReader {
+        ContinuousDistribution read(DataInputStream in) throws IOException;
+    }
+
+    // The reader for each kind of distribution we know how to read, by the tag it writes first, see readFromStream()
+    private static final Map<Integer, StreamReader> readers = new ConcurrentHashMap<>();
+
+    static {
+        registerReader(DiscreteSetDistribution.STREAM_TAG, DiscreteSetDistribution::readBody);
+    }
+
+    /**
+     * Lets readFromStream() read another kind of distribution. The subclass's writeToStream() must write the tag as an
+     * int before anything else.
+     *
+     * @param tag the tag that distribution writes first, which no other kind of distribution may use
+     * @param reader reads the rest of what writeToStream() wrote
+     */
+    public static void registerReader(int tag, StreamReader reader) {
+        StreamReader existing = readers.putIfAbsent(tag, reader);
+        if (existing != null && existing != reader) {
+            throw new IllegalArgumentException("Distribution tag "+tag+" is already taken");
+        }
+    }
+
+    /**
+     * Writes this distribution to a stream, so that it can be read back with readFromStream(). Subclasses that can be
+     * sent to other processes need to override this, writing a tag first, and register a reader for that tag.
+     *
+     * @param stream the stream to write to
+     * @throws IOException if this kind of distribution can't be written
+     */
+    public void writeToStream(OutputStream stream) throws IOException {
+        throw new IOException("Don't know how to write a "+getClass().getName()+" to a stream");
+    }
+
+    /**
+     * @param stream the stream to read from
+     * @return a distribution written with writeToStream()
+     * @throws IOException if we can't read, or don't recognize the distribution
+     */
+    public static ContinuousDistribution readFromStream(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        int tag = in.readInt();
+        StreamReader reader = readers.get(tag);
+        if (reader == null) throw new IOException("Unrecognized distribution type "+tag);
+        return reader.read(in);
+    }
 }
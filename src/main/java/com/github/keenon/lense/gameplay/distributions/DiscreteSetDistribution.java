@@ -1,5 +1,9 @@
 package com.github.keenon.lense.gameplay.distributions;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Random;
 
 /**
@@ -8,6 +12,9 @@ import java.util.Random;
  * Draws randomly, with replacement, from a given set of values
  */
 public class DiscreteSetDistribution extends ContinuousDistribution {
+    // What writeToStream() writes first, so that ContinuousDistribution.readFromStream() knows to call readBody()
+    static final int STREAM_TAG = 1;
+
     long[] potentialValues;
 
     public DiscreteSetDistribution(long[] potentialValues) {
@@ -18,4 +25,33 @@ public class DiscreteSetDistribution extends ContinuousDistribution {
     public long drawSample(Random r) {
         return potentialValues[r.nextInt(potentialValues.length)];
     }
+
+    @Override
+    public double getMean() {
+        double sum = 0.0;
+        for (long value : potentialValues) sum += value;
+        return sum / potentialValues.length;
+    }
+
+    @Override
+    public void writeToStream(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(STREAM_TAG);
+        out.writeInt(potentialValues.length);
+        for (long value : potentialValues) {
+            out.writeLong(value);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads what writeToStream() wrote after the tag.
+     */
+    static DiscreteSetDistribution readBody(DataInputStream in) throws IOException {
+        long[] potentialValues = new long[in.readInt()];
+        for (int i = 0; i < potentialValues.length; i++) {
+            potentialValues[i] = in.readLong();
+        }
+        return new DiscreteSetDistribution(potentialValues);
+    }
 }
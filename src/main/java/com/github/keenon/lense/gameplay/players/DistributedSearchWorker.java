@@ -0,0 +1,313 @@
+package com.github.keenon.lense.gameplay.players;
+
+import com.github.keenon.lense.gameplay.Game;
+import com.github.keenon.lense.gameplay.utilities.UncertaintyUtility;
+import com.github.keenon.lense.gameplay.utilities.UncertaintyUtilityEstimate;
+import com.github.keenon.lense.gameplay.utilities.UncertaintyUtilityWithoutTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs root-parallel MCTS searches on behalf of a GamePlayerMCTS in another process, so that one gameplayer can search
+ * with the cores of several JVMs (or several machines). Start one with:
+ *
+ * java com.github.keenon.lense.gameplay.players.DistributedSearchWorker [port] [bind address]
+ *
+ * and add its address to the coordinating GamePlayerMCTS's distributedWorkers.
+ *
+ * There's no authentication, and anyone who can connect can have the worker run searches, so by default it only listens
+ * on the loopback interface. To take requests from other machines, pass the address of an interface on a trusted network.
+ *
+ * Each request carries a game written with Game.writeToStream(), the name of the utility function's class, a seed, and a
+ * time budget. The worker only runs utilities that have been registered with registerUtility() under that name (the
+ * ones in gameplay.utilities always are), and any settings on the coordinator's instance aren't carried over. The worker
+ * searches with a default GamePlayerMCTS, and sends back the visits and utility sum for every root move its trees tried,
+ * which the coordinator merges with its own.
+ */
+public class DistributedSearchWorker {
+    /**
+     * An SLF4J Logger for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(DistributedSearchWorker.class);
+
+    public static final int DEFAULT_PORT = 2112;
+
+    // Root moves are sent as a kind, a variable and the slot of a human, since the two processes have different objects
+    // for everything
+
+    static final int TURN_IN = 1;
+    static final int WAIT = 2;
+    static final int JOB_POSTING = 3;
+    static final int QUERY_LAUNCH = 4;
+
+    // The utility functions requests may ask for, by the name of their class
+    private static final Map<String, Supplier<Function<Game, Double>>> utilities = new ConcurrentHashMap<>();
+
+    static {
+        registerUtility(UncertaintyUtility.class, UncertaintyUtility::new);
+        registerUtility(UncertaintyUtilityWithoutTime.class, UncertaintyUtilityWithoutTime::new);
+        registerUtility(UncertaintyUtilityEstimate.class, UncertaintyUtilityEstimate::new);
+    }
+
+    /**
+     * Lets workers in this process run searches with another utility function. Coordinators send the name of their
+     * utility's class, so the worker's process has to register it under the same class.
+     *
+     * @param utilityClass the class of the utility function, whose name requests will use
+     * @param factory makes a fresh instance of the utility for each request
+     */
+    public static <T extends Function<Game, Double>> void registerUtility(Class<T> utilityClass, Supplier<? extends T> factory) {
+        utilities.put(utilityClass.getName(), factory::get);
+    }
+
+    final GamePlayerMCTS player;
+    final ServerSocket serverSocket;
+
+    /**
+     * Listens on the loopback interface only.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public DistributedSearchWorker(int port) throws IOException {
+        this(new GamePlayerMCTS(), InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * @param player the player whose scheduler and settings requests get
+     * @param bindAddress the interface to listen on. Anyone who can reach it can run searches here.
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public DistributedSearchWorker(GamePlayerMCTS player, InetAddress bindAddress, int port) throws IOException {
+        this.player = player;
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        if (!bindAddress.isLoopbackAddress()) {
+            log.warn("Search worker is listening on "+bindAddress+", and doesn't authenticate requests");
+        }
+    }
+
+    /**
+     * @return the port this worker is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the worker is closed, serving each one on its own thread.
+     */
+    public void run() {
+        log.info("Search worker listening on "+serverSocket.getInetAddress()+":"+getPort());
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException e) {
+                if (!serverSocket.isClosed()) log.warn("Failed to accept a connection: "+e.getMessage());
+                continue;
+            }
+            Thread connection = new Thread(() -> serve(socket), "search-worker-"+socket.getRemoteSocketAddress());
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /**
+     * Starts run() on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::run, "search-worker-"+getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Answers requests on one connection until the other end closes it.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                long seed;
+                try {
+                    seed = in.readLong();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                long budgetMillis = in.readLong();
+                boolean deterministic = in.readBoolean();
+                String utilityClass = in.readUTF();
+                Game game = Game.readFromStream(in);
+
+                try {
+                    List<GamePlayerMCTS.MergedMove> moves = search(game, utilityClass, seed, budgetMillis, deterministic);
+                    out.writeBoolean(true);
+                    out.writeInt(moves.size());
+                    for (GamePlayerMCTS.MergedMove move : moves) {
+                        writeMove(out, move.move);
+                        out.writeInt(move.visits);
+                        out.writeDouble(move.observedUtility);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    out.writeBoolean(false);
+                    out.writeUTF(e.getMessage());
+                }
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            log.warn("Lost connection to a coordinator: "+e.getMessage());
+        }
+    }
+
+    private List<GamePlayerMCTS.MergedMove> search(Game game, String utilityClass, long seed, long budgetMillis,
+                                                   boolean deterministic) {
+        Supplier<Function<Game, Double>> factory = utilities.get(utilityClass);
+        if (factory == null) throw new IllegalArgumentException("Utility "+utilityClass+" isn't registered with this worker");
+        Function<Game, Double> utility = factory.get();
+
+        long searchStart = System.nanoTime();
+        long deadline = budgetMillis > 0 && !deterministic ? searchStart + budgetMillis * 1000000L : 0;
+
+        // Each request gets its own player, sharing this worker's scheduler and settings, since requests from several
+        // coordinators can run at once
+        GamePlayerMCTS requestPlayer = new GamePlayerMCTS(player.scheduler);
+        requestPlayer.explorationConstant = player.explorationConstant;
+        requestPlayer.virtualLoss = player.virtualLoss;
+        requestPlayer.maxNodesPerSearch = player.maxNodesPerSearch;
+        requestPlayer.rolloutPolicy = player.rolloutPolicy;
+        requestPlayer.maxSimulationDepth = player.maxSimulationDepth;
+        requestPlayer.leafEvaluator = player.leafEvaluator;
+        requestPlayer.earlyStopping = player.earlyStopping;
+        requestPlayer.earlyStopErrorRate = player.earlyStopErrorRate;
+        requestPlayer.earlyStopMinPlayouts = player.earlyStopMinPlayouts;
+        requestPlayer.movePrior = player.movePrior;
+        requestPlayer.priorWeight = player.priorWeight;
+        requestPlayer.deterministic = deterministic;
+        requestPlayer.deterministicWorkers = player.deterministicWorkers;
+
+        return requestPlayer.rootParallelStatistics(game, utility, game.getLegalMoves(), new SplittableRandom(seed),
+                searchStart, deadline);
+    }
+
+    static void writeMove(DataOutputStream out, Game.Event move) throws IOException {
+        if (move instanceof Game.QueryLaunch) {
+            out.writeInt(QUERY_LAUNCH);
+            out.writeInt(((Game.QueryLaunch)move).variable);
+            out.writeInt(((Game.QueryLaunch)move).human.slot);
+        }
+        else {
+            if (move instanceof Game.TurnIn) out.writeInt(TURN_IN);
+            else if (move instanceof Game.Wait) out.writeInt(WAIT);
+            else if (move instanceof Game.HumanJobPosting) out.writeInt(JOB_POSTING);
+            else throw new IOException("Not a gameplayer move: "+move);
+            out.writeInt(-1);
+            out.writeInt(-1);
+        }
+    }
+
+    /**
+     * @return the legal move matching a move written by writeMove(), or null if there isn't one
+     */
+    static Game.Event readMove(DataInputStream in, Game.Event[] legalMoves) throws IOException {
+        int kind = in.readInt();
+        int variable = in.readInt();
+        int slot = in.readInt();
+        for (Game.Event move : legalMoves) {
+            if (move instanceof Game.QueryLaunch) {
+                Game.QueryLaunch ql = (Game.QueryLaunch)move;
+                if (kind == QUERY_LAUNCH && ql.variable == variable && ql.human.slot == slot) return move;
+            }
+            else if ((kind == TURN_IN && move instanceof Game.TurnIn) ||
+                    (kind == WAIT && move instanceof Game.Wait) ||
+                    (kind == JOB_POSTING && move instanceof Game.HumanJobPosting)) {
+                return move;
+            }
+        }
+        return null;
+    }
+
+    private static final ExecutorService requests = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "search-worker-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Sends a search to a remote worker, on a background thread.
+     *
+     * @param address where the worker is listening
+     * @param serializedGame the game to search, written with Game.writeToStream()
+     * @param utility the utility function, whose class must be registered with the worker
+     * @param seed the seed for the worker's search
+     * @param budgetMillis how long the worker should search for, or 0 for its default number of playouts
+     * @param deterministic whether the worker should search deterministically
+     * @param legalMoves the legal moves in the coordinator's game, which the worker's results are matched up to
+     * @param timeoutMillis how long to wait for the worker before giving up on it
+     * @return the worker's statistics for each root move it tried
+     */
+    static Future<List<GamePlayerMCTS.MergedMove>> requestSearch(InetSocketAddress address, byte[] serializedGame,
+                                                                 Function<Game, Double> utility, long seed,
+                                                                 long budgetMillis, boolean deterministic,
+                                                                 Game.Event[] legalMoves, long timeoutMillis) {
+        return requests.submit(() -> {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, (int)Math.min(timeoutMillis, Integer.MAX_VALUE));
+                socket.setSoTimeout((int)Math.min(timeoutMillis, Integer.MAX_VALUE));
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeLong(seed);
+                out.writeLong(budgetMillis);
+                out.writeBoolean(deterministic);
+                out.writeUTF(utility.getClass().getName());
+                out.write(serializedGame);
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                if (!in.readBoolean()) throw new IOException(in.readUTF());
+                int numMoves = in.readInt();
+                List<GamePlayerMCTS.MergedMove> moves = new ArrayList<>();
+                for (int i = 0; i < numMoves; i++) {
+                    Game.Event move = readMove(in, legalMoves);
+                    int visits = in.readInt();
+                    double observedUtility = in.readDouble();
+                    if (move == null) throw new IOException("Worker returned a move that isn't legal here");
+                    GamePlayerMCTS.MergedMove merged = new GamePlayerMCTS.MergedMove(move);
+                    merged.visits = visits;
+                    merged.observedUtility = observedUtility;
+                    moves.add(merged);
+                }
+                return moves;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        InetAddress bindAddress = args.length > 1 ? InetAddress.getByName(args[1]) : InetAddress.getLoopbackAddress();
+        new DistributedSearchWorker(new GamePlayerMCTS(), bindAddress, port).run();
+    }
+}
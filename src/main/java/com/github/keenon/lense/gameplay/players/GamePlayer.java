@@ -2,6 +2,7 @@ package com.github.keenon.lense.gameplay.players;
 
 import com.github.keenon.lense.gameplay.Game;
 
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 
 /**
@@ -14,4 +15,16 @@ import java.util.function.Function;
 public abstract class GamePlayer {
     public boolean production = false;
     public abstract Game.Event getNextMove(Game game, Function<Game, Double> utility);
+
+    /**
+     * This gets called while the game is waiting on the environment (usually humans) after the gameplayer made a Wait,
+     * so that players that can use the idle time to get a head start on their next move can do so. It should return
+     * soon after stop starts returning true, which happens once something has arrived for the game. The game must be left
+     * as it was found. By default this does nothing.
+     *
+     * @param game the game, which it's the environment's turn in
+     * @param utility the utility function the next move will be maximizing
+     * @param stop returns true once pondering should end
+     */
+    public void ponder(Game game, Function<Game, Double> utility, BooleanSupplier stop) {}
 }
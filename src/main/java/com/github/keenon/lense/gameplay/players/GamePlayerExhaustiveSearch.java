@@ -4,9 +4,10 @@ import com.github.keenon.lense.gameplay.Game;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Stack;
 import java.util.function.Function;
 
 /**
@@ -32,7 +33,7 @@ public class GamePlayerExhaustiveSearch extends GamePlayer {
     public Game.Event getNextMove(Game game, Function<Game, Double> utility) {
         TreeNode root = new TreeNode(game, null);
 
-        Stack<TreeNode> visitedNodeOrder = new Stack<>();
+        Deque<TreeNode> visitedNodeOrder = new ArrayDeque<>();
 
         numNodes = 0;
         recursivelyEnumerate(root, visitedNodeOrder);
@@ -40,7 +41,7 @@ public class GamePlayerExhaustiveSearch extends GamePlayer {
             return null;
         }
 
-        while (!visitedNodeOrder.empty()) {
+        while (!visitedNodeOrder.isEmpty()) {
             TreeNode node = visitedNodeOrder.pop();
 
             // Return to the frozen stack from this frame
@@ -149,7 +150,7 @@ public class GamePlayerExhaustiveSearch extends GamePlayer {
      *
      * @param node the node on which to recursively construct children
      */
-    private void recursivelyEnumerate(TreeNode node, Stack<TreeNode> visitedNodeOrder) {
+    private void recursivelyEnumerate(TreeNode node, Deque<TreeNode> visitedNodeOrder) {
         visitedNodeOrder.push(node);
         node.stackFreeze.addAll(node.game.stack);
 
@@ -1,19 +1,37 @@
 package com.github.keenon.lense.gameplay.players;
 
+import com.github.keenon.lense.gameplay.ClonePool;
+import com.github.keenon.lense.gameplay.EventStack;
 import com.github.keenon.lense.gameplay.Game;
-import org.omg.PortableServer.ThreadPolicy;
+import com.github.keenon.lense.gameplay.utilities.UncertaintyUtilityEstimate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.nio.ch.ThreadPool;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
 
 /**
  * Created by keenon on 9/27/15.
  *
  * A sampling based gameplayer that can handle time as a part of the game.
+ *
+ * The search is over a DAG rather than a strict tree: nodes that are reached by different orderings of equivalent
+ * events (say, launching queries on variables 3 then 5, versus 5 then 3) share their visit counts and utility sums
+ * through a transposition table keyed by the Game's state hash.
+ *
+ * Search threads share one tree without taking any locks. Visit counts and utility sums are atomic, children are added
+ * by compare-and-swap, and each thread adds a virtual loss to every node on its path as it goes down, which it takes
+ * back when it backpropagates. That makes in-progress paths look temporarily worse, so threads that start from the
+ * same root spread out across its children instead of piling onto the same one.
+ *
+ * Nodes live in a SearchArena, as indices into primitive arrays rather than as objects, so that big searches don't
+ * bury the game loop in garbage collection.
  */
 public class GamePlayerMCTS extends GamePlayer {
     /**
@@ -23,19 +41,116 @@ public class GamePlayerMCTS extends GamePlayer {
 
     double explorationConstant = 0.25;
     boolean multithreaded = true;
-    ThreadPoolExecutor executor = null;
+    // Where the search threads come from. Every player shares one pool by default, so many games can be played at once
+    // without each of them spinning up a thread per core.
+    SearchScheduler scheduler;
+
+    // If this is greater than 0, every move gets this much wall clock time, and the search threads keep running playouts
+    // until it runs out. This gives predictable move latency, and lets us use any slack to improve the decision.
+    // Otherwise we run a fixed number of playouts per move, scaled by the number of legal moves.
+    public long moveTimeBudgetMillis = 0;
+
+    // The utility each in-progress playout temporarily subtracts from every node on its path. Should be on the order of
+    // a bad outcome under the utility function, since a playout that hasn't finished yet counts as a visit.
+    public double virtualLoss = 1.0;
+
+    // If this is true, we hang on to the search tree after every move, and the next search on the same game starts from
+    // the subtree that matches whatever events actually happened in the meantime, rather than from scratch.
+    public boolean reuseSubtrees = true;
+    final Map<Game, PreviousSearch> previousSearches = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // Each search builds its tree in an arena that holds at most this many nodes. Arenas are recycled once a search (and
+    // any search that reuses its subtree) is done with them, so a long game doesn't keep allocating new trees.
+    public int maxNodesPerSearch = SearchArena.DEFAULT_MAX_NODES;
+    final Queue<SearchArena> spareArenas = new ConcurrentLinkedQueue<>();
+
+    // If this is set, every playout adds at most one node to the tree, and finishes the game from there with this
+    // policy instead of searching all the way to the end. That makes playouts much cheaper, at the cost of noisier
+    // estimates, depending on how good the policy is. If it's null, every playout searches to the end of the game.
+    public RolloutPolicy rolloutPolicy = null;
+
+    // If this is greater than 0, playouts stop after this many events (in the tree and the rollout together), and if the
+    // game isn't over by then it gets scored by the leaf evaluator instead of the utility function. That bounds the cost
+    // of a playout no matter how long games get. The leaf evaluator should be on the same scale as the utility, so if
+    // it's null we use an UncertaintyUtilityEstimate of whatever utility the search is maximizing.
+    public int maxSimulationDepth = 0;
+    public Function<Game, Double> leafEvaluator = null;
+
+    // If this is true, we stop searching as soon as the best move at the root can't be overtaken in the playouts we have
+    // left, even if every one of them went to a rival and came back with the best utility we've seen so far. If
+    // earlyStopErrorRate is greater than 0, we also stop once the best move's lead is statistically significant at that
+    // rate, by a Hoeffding bound over the range of utilities we've seen. A move we haven't tried could be anything, so
+    // we never stop before every legal move at the root has been visited, and this search has run at least
+    // earlyStopMinPlayouts playouts.
+    public boolean earlyStopping = true;
+    public double earlyStopErrorRate = 0.0;
+    public int earlyStopMinPlayouts = 10;
+
+    // If this is set, gameplayer nodes expand their moves in order of prior score, and only as fast as progressive
+    // widening allows, rather than all at once. The prior also adds priorWeight * prior / (visits + 1) to each child's
+    // UCT score, which steers early playouts toward promising moves and fades as real results come in.
+    public MovePrior movePrior = null;
+    public double priorWeight = 0.25;
+
+    // The thread index for games that aren't being searched on, so don't get a slot of their own in the arena
+    static final int NO_THREAD = -1;
+
+    // Every search thread gets its own random stream, split off from this seed, so that threads never contend on a
+    // shared generator. If deterministic is true, the same seed and the same game will always produce the same move: the
+    // search runs root-parallel over deterministicWorkers workers, and ignores the time budget. That makes performance
+    // changes easy to bisect. The worker count doesn't depend on the pool, so results carry over between machines.
+    public long seed = 42;
+    public boolean deterministic = false;
+    public int deterministicWorkers = 4;
+
+    // If this is true, each search thread builds its own private tree on its own clone of the game, sharing nothing with
+    // the others, and we add up the statistics for each root move once they're all done. That gives up the shared tree's
+    // pooled knowledge below the root, but avoids all contention between threads. Root-parallel searches don't reuse
+    // subtrees.
+    public boolean rootParallel = false;
+
+    // If this isn't empty, every search also ships the game to a DistributedSearchWorker at each of these addresses,
+    // which runs its own root-parallel search, and we merge their root statistics with ours. Workers that fail or don't
+    // answer within the time budget plus distributedTimeoutMillis are logged and left out. Searching with remote
+    // workers is always root-parallel.
+    public List<InetSocketAddress> distributedWorkers = new ArrayList<>();
+    public long distributedTimeoutMillis = 10000;
+
+    // If this is true, the game player keeps searching while the game waits on humans (see ponder()), growing the tree
+    // below the current state, so that the next move starts from a warm tree. This only helps if we reuse subtrees. It's
+    // off by default, since it spends the search pool on games that aren't waiting for a move. Pondering hands the pool
+    // ponderSlicePlayouts playouts per task at a time, so other searches get their turn in between, and stops once the
+    // tree holds maxPonderNodes nodes.
+    public boolean pondering = false;
+    public int ponderSlicePlayouts = 16;
+    public int maxPonderNodes = SearchArena.CHUNK_SIZE * 4;
+
+    // If this is true, we keep the search threads' clones of each game between moves, and bring them up to date with
+    // whatever happened in the meantime, rather than copying the whole game for every move.
+    public boolean reuseClones = true;
+    final Map<Game, ClonePool> clonePools = Collections.synchronizedMap(new WeakHashMap<>());
 
     public GamePlayerMCTS() {
-        executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this(SearchScheduler.getShared());
+    }
+
+    public GamePlayerMCTS(SearchScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
+    /**
+     * @param executor the executor to run searches on, which is wrapped in a SearchScheduler of its own
+     * @deprecated searches run on a SearchScheduler now, which can share one work-stealing pool between players, so use
+     * GamePlayerMCTS(SearchScheduler), or GamePlayerMCTS() for the shared pool
+     */
+    @Deprecated
     public GamePlayerMCTS(ThreadPoolExecutor executor) {
-        this.executor = executor;
+        this(new SearchScheduler(executor));
     }
 
     @Override
     public Game.Event getNextMove(Game game, Function<Game, Double> utility) {
-        Random r = new Random(42);
+        SplittableRandom streams = new SplittableRandom(seed);
 
         assert(game.isGameplayerTurn());
 
@@ -53,148 +168,893 @@ public class GamePlayerMCTS extends GamePlayer {
             }
         }
 
-        GameTreeNode root = new GameTreeNode(game, null);
+        long searchStart = System.nanoTime();
+        long deadline = moveTimeBudgetMillis > 0 && !deterministic ? searchStart + moveTimeBudgetMillis * 1000000L : 0;
 
+        if ((multithreaded && (rootParallel || deterministic)) || !distributedWorkers.isEmpty()) {
+            return searchRootParallel(game, utility, legalMoves, streams, searchStart, deadline);
+        }
+
+        Function<Game, Double> leafUtility = leafEvaluatorFor(utility);
+        final SearchArena arena = takeArena(maxNodesPerSearch);
+        int reused = reuseSubtrees ? reuseSubtree(game, arena) : SearchArena.NONE;
+        final int root = reused != SearchArena.NONE ? reused : newNode(arena, game, NO_THREAD, null);
+        if (reused != SearchArena.NONE) {
+            log.info("MCTS reusing a subtree with "+arena.visits(root)+" playouts");
+        }
+
+        SearchBudget budget;
         if (multithreaded) {
-            // Use the number of inactive threads, but no fewer than 1 thread
-            int numThreads = Math.max(1, executor.getPoolSize() - executor.getActiveCount());
+            // The scheduler decides how many ways to split this search based on what else is running
+            int numThreads = scheduler.beginSearch();
+
+            Game[] gameClones = clonesFor(game, numThreads);
+            Random[] randoms = new Random[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                randoms[i] = new Random(streams.split().nextLong());
+            }
+            int playoutsPerThread = (int)Math.ceil(Math.max(5, legalMoves.length * 2.0 / numThreads));
+            SearchBudget sharedBudget = new SearchBudget(arena, root, legalMoves.length, playoutsPerThread * numThreads, searchStart, deadline);
+            budget = sharedBudget;
+
+            try {
+                ForkJoinTask<Void>[] threads = (ForkJoinTask<Void>[])new ForkJoinTask[numThreads];
+                for (int i = 0; i < threads.length; i++) {
+                    int iFinal = i;
+                    Callable<Void> runnable = () -> {
+                        for (int j = 0; keepSearching(j, playoutsPerThread, sharedBudget); j++) {
+                            playOut(arena, root, iFinal, randoms[iFinal], gameClones[iFinal], utility, leafUtility);
+                        }
+                        return null;
+                    };
+                    threads[i] = scheduler.submit(runnable);
+                }
+                joinAll(game, threads);
+            }
+            finally {
+                scheduler.endSearch();
+            }
+        }
+        else {
+            Random r = new Random(streams.split().nextLong());
+            int playouts = (int)Math.ceil(legalMoves.length * 1.5);
+            budget = new SearchBudget(arena, root, legalMoves.length, playouts, searchStart, deadline);
+            for (int i = 0; keepSearching(i, playouts, budget); i++) {
+                playOut(arena, root, 0, r, game, utility, leafUtility);
+            }
+        }
+
+        log.info("MCTS ran "+arena.visits(root)+" playouts in "+((System.nanoTime() - searchStart) / 1000000)+"ms");
+        if (budget.settledWithRemaining > 0) {
+            log.info("MCTS stopped early, with the best move settled and about "+budget.settledWithRemaining+" playouts to spare");
+        }
+        log.info("MCTS results:");
+        for (int child = arena.firstChild(root); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+            double avgUtil = arena.averageUtility(child);
+            double uct = avgUtil + explorationConstant*Math.sqrt(Math.log(arena.visits(root))/arena.visits(child));
+            log.info("\t"+arena.event(child)+": "+arena.visits(child)+", avg util: "+avgUtil+", UCT: "+uct);
+        }
+        log.info("Search arena holds "+arena.size()+"/"+arena.getMaxNodes()+" nodes, "+arena.transpositionCount()+" states");
 
-            Future<Void>[] threads = (Future<Void>[])new Future[numThreads];
-            Game[] gameClones = game.getClones(threads.length);
+        // With a tight enough time budget, some moves may never have been tried, so only pick from the ones that were
 
-            for (int i = 0; i < threads.length; i++) {
+        int choice = maxChildBy(arena, root, (child) -> arena.visits(child) == 0 ? Double.NEGATIVE_INFINITY : arena.averageUtility(child));
+        assert(choice != SearchArena.NONE);
+        Game.Event move = eventFor(arena, choice, NO_THREAD, game);
+        // Whoever plays the move stamps it with the real time and pushes it, so it can't be the event the tree holds
+        if (move == arena.event(choice)) move = shiftedCopy(move, 0);
+
+        if (reuseSubtrees && !(move instanceof Game.TurnIn)) {
+            // Don't let the tree we're hanging on to keep any games alive
+            arena.forgetThreadEvents();
+            previousSearches.put(game, new PreviousSearch(arena, root, game));
+        }
+        else {
+            recycleArena(arena);
+        }
+
+        return move;
+    }
+
+    /**
+     * Keeps searching from the current state of the game, which is waiting on the environment, until stop says something
+     * has arrived or the tree holds maxPonderNodes nodes. Environment nodes sample the events we expect (like the responses to the soonest
+     * returning query) in proportion to how likely they are, so whichever one actually happens most likely already has a
+     * subtree, which the next call to getNextMove() picks up like any other reused subtree.
+     */
+    @Override
+    public void ponder(Game game, Function<Game, Double> utility, BooleanSupplier stop) {
+        if (!pondering || !reuseSubtrees || rootParallel || deterministic || !distributedWorkers.isEmpty()) return;
+        if (game.isTerminated() || stop.getAsBoolean()) return;
+
+        long ponderStart = System.nanoTime();
+        SplittableRandom streams = new SplittableRandom(seed);
+        Function<Game, Double> leafUtility = leafEvaluatorFor(utility);
+
+        SearchArena arena = takeArena(maxNodesPerSearch);
+        int reused = reuseSubtree(game, arena);
+        int root = reused != SearchArena.NONE ? reused : newNode(arena, game, NO_THREAD, null);
+        int startVisits = arena.visits(root);
+
+        // Stop growing once we've got a head start, since the next move will do its own search anyway
+
+        int maxNodes = Math.min(arena.getMaxNodes(), maxPonderNodes);
+
+        if (multithreaded) {
+            // Pondering can go on for as long as the humans take, so rather than tie up pool threads for all that time,
+            // we hand the pool short slices and go back to the end of the queue after each one. Each slice asks the
+            // scheduler again, so we back off when other searches start.
+
+            int maxThreads = scheduler.beginSearch();
+            scheduler.endSearch();
+            Game[] gameClones = clonesFor(game, maxThreads);
+            Random[] randoms = new Random[maxThreads];
+            for (int i = 0; i < maxThreads; i++) randoms[i] = new Random(streams.split().nextLong());
+
+            while (!stop.getAsBoolean() && arena.size() < maxNodes) {
+                int numThreads = Math.min(maxThreads, scheduler.beginSearch());
+                try {
+                    ForkJoinTask<Void>[] slices = (ForkJoinTask<Void>[])new ForkJoinTask[numThreads];
+                    for (int i = 0; i < numThreads; i++) {
+                        int iFinal = i;
+                        Callable<Void> runnable = () -> {
+                            for (int j = 0; j < ponderSlicePlayouts && !stop.getAsBoolean() && arena.size() < maxNodes; j++) {
+                                playOut(arena, root, iFinal, randoms[iFinal], gameClones[iFinal], utility, leafUtility);
+                            }
+                            return null;
+                        };
+                        slices[i] = scheduler.submit(runnable);
+                    }
+                    joinAll(game, slices);
+                }
+                finally {
+                    scheduler.endSearch();
+                }
+            }
+        }
+        else {
+            Random r = new Random(streams.split().nextLong());
+            while (!stop.getAsBoolean() && arena.size() < maxNodes) {
+                playOut(arena, root, 0, r, game, utility, leafUtility);
+            }
+        }
+
+        log.info("MCTS pondered "+(arena.visits(root) - startVisits)+" playouts in "+((System.nanoTime() - ponderStart) / 1000000)+"ms");
+
+        arena.forgetThreadEvents();
+        previousSearches.put(game, new PreviousSearch(arena, root, game));
+    }
+
+    /**
+     * @return thread safe copies of the game, which have to be left in the state they're in
+     */
+    private Game[] clonesFor(Game game, int numClones) {
+        if (!reuseClones) return game.getClones(numClones);
+        return clonePools.computeIfAbsent(game, (key) -> new ClonePool()).getClones(game, numClones);
+    }
+
+    /**
+     * Waits for every task searching on clones of game. A task that failed may have left its clone halfway through a
+     * playout, so in that case we throw the whole pool away rather than hand out dirty clones next time.
+     */
+    private void joinAll(Game game, ForkJoinTask<Void>[] threads) {
+        boolean failed = false;
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].get();
+            } catch (Exception e) {
+                log.warn("Had exception while running child");
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+        if (failed) clonePools.remove(game);
+    }
+
+    /**
+     * Runs a root-parallel search: every worker gets its own clone of the game, its own arena, and its own tree, and we
+     * only combine their results at the root, once they're all done. Remote workers, if we have any, search at the same
+     * time as the local ones.
+     */
+    private Game.Event searchRootParallel(Game game, Function<Game, Double> utility, Game.Event[] legalMoves,
+                                          SplittableRandom streams, long searchStart, long deadline) {
+        // We won't be building on any earlier tree
+        PreviousSearch stale = previousSearches.remove(game);
+        if (stale != null) recycleArena(stale.arena);
+
+        // Writing the game out briefly pops its stack, so that has to happen here rather than on the request threads
+
+        List<Future<List<MergedMove>>> remoteSearches = new ArrayList<>();
+        if (!distributedWorkers.isEmpty()) {
+            SplittableRandom remoteStreams = streams.split();
+            long budgetMillis = deadline == 0 ? 0 : Math.max(1, (deadline - System.nanoTime()) / 1000000);
+            try {
+                ByteArrayOutputStream serializedGame = new ByteArrayOutputStream();
+                game.writeToStream(serializedGame);
+                for (InetSocketAddress address : distributedWorkers) {
+                    remoteSearches.add(DistributedSearchWorker.requestSearch(address, serializedGame.toByteArray(),
+                            utility, remoteStreams.split().nextLong(), budgetMillis, deterministic, legalMoves,
+                            budgetMillis + distributedTimeoutMillis));
+                }
+            }
+            catch (IOException e) {
+                log.warn("Couldn't send the game to remote workers, searching locally: "+e.getMessage());
+            }
+        }
+
+        List<MergedMove> merged = rootParallelStatistics(game, utility, legalMoves, streams, searchStart, deadline);
+
+        for (int i = 0; i < remoteSearches.size(); i++) {
+            try {
+                int remotePlayouts = 0;
+                for (MergedMove move : remoteSearches.get(i).get()) {
+                    mergeMove(merged, move.move, move.visits, move.observedUtility);
+                    remotePlayouts += move.visits;
+                }
+                log.info("Remote worker "+distributedWorkers.get(i)+" ran "+remotePlayouts+" playouts");
+            }
+            catch (InterruptedException | ExecutionException e) {
+                log.warn("Remote worker "+distributedWorkers.get(i)+" failed, leaving it out: "+e.getMessage());
+            }
+        }
+
+        log.info("MCTS results:");
+        MergedMove best = null;
+        for (MergedMove move : merged) {
+            log.info("\t"+move.move+": "+move.visits+", avg util: "+move.observedUtility / move.visits);
+            // With a tight enough time budget, some moves may never have been tried, so only pick from the ones that were
+            if (move.visits == 0) continue;
+            if (best == null || move.observedUtility / move.visits > best.observedUtility / best.visits) best = move;
+        }
+        assert(best != null);
+        return best.move;
+    }
+
+    /**
+     * Runs the local part of a root-parallel search, and adds up the statistics for each root move across all the trees.
+     * This is also what a DistributedSearchWorker runs on its copy of the game.
+     *
+     * @param legalMoves the legal moves in game, which the merged moves are drawn from
+     * @return the combined statistics for each root move that any tree tried
+     */
+    List<MergedMove> rootParallelStatistics(Game game, Function<Game, Double> utility, Game.Event[] legalMoves,
+                                            SplittableRandom streams, long searchStart, long deadline) {
+        // The scheduler decides how many ways to split this search based on what else is running. That isn't
+        // repeatable, and neither is the size of the pool, so deterministic searches use a fixed number of workers.
+        int numWorkers = deterministic ? deterministicWorkers : scheduler.beginSearch();
+        Function<Game, Double> leafUtility = leafEvaluatorFor(utility);
+
+        Game[] gameClones = clonesFor(game, numWorkers);
+        SearchArena[] arenas = new SearchArena[numWorkers];
+        int[] roots = new int[numWorkers];
+        SearchBudget[] budgets = new SearchBudget[numWorkers];
+        Random[] randoms = new Random[numWorkers];
+        int playoutsPerWorker = (int)Math.ceil(Math.max(5, legalMoves.length * 2.0 / numWorkers));
+        for (int i = 0; i < numWorkers; i++) {
+            randoms[i] = new Random(streams.split().nextLong());
+            arenas[i] = takeArena(Math.max(SearchArena.CHUNK_SIZE, maxNodesPerSearch / numWorkers));
+            roots[i] = newNode(arenas[i], gameClones[i], NO_THREAD, null);
+            budgets[i] = new SearchBudget(arenas[i], roots[i], legalMoves.length, playoutsPerWorker, searchStart, deadline);
+        }
+
+        try {
+            ForkJoinTask<Void>[] workers = (ForkJoinTask<Void>[])new ForkJoinTask[numWorkers];
+            for (int i = 0; i < numWorkers; i++) {
                 int iFinal = i;
                 Callable<Void> runnable = () -> {
-                    for (int j = 0; j < Math.max(5,legalMoves.length * 2.0 / threads.length); j++) {
-                        playOut(root, r, gameClones[iFinal], utility);
+                    for (int j = 0; keepSearching(j, playoutsPerWorker, budgets[iFinal]); j++) {
+                        playOut(arenas[iFinal], roots[iFinal], 0, randoms[iFinal], gameClones[iFinal], utility, leafUtility);
                     }
                     return null;
                 };
-                threads[i] = executor.submit(runnable);
+                workers[i] = scheduler.submit(runnable);
             }
-            for (int i = 0; i < threads.length; i++) {
-                try {
-                    threads[i].get();
-                } catch (Exception e) {
-                    log.warn("Had exception while running child");
-                    e.printStackTrace();
+            joinAll(game, workers);
+        }
+        finally {
+            if (!deterministic) scheduler.endSearch();
+        }
+
+        // The root is always the gameplayer's turn, so its children all correspond to legal moves in the real game. We
+        // merge onto those, since the trees' own events point at the clones' humans.
+
+        List<MergedMove> merged = new ArrayList<>();
+        int totalPlayouts = 0;
+        for (int i = 0; i < numWorkers; i++) {
+            totalPlayouts += arenas[i].visits(roots[i]);
+            for (int child = arenas[i].firstChild(roots[i]); child != SearchArena.NONE; child = arenas[i].nextSibling(child)) {
+                Game.Event e = arenas[i].event(child);
+                for (Game.Event legalMove : legalMoves) {
+                    if (sameMove(legalMove, e)) {
+                        mergeMove(merged, legalMove, arenas[i].visits(child), arenas[i].observedUtility(child));
+                        break;
+                    }
                 }
             }
+            recycleArena(arenas[i]);
         }
-        else {
-            for (int i = 0; i < legalMoves.length * 1.5; i++) {
-                playOut(root, r, game, utility);
+
+        log.info("Root-parallel MCTS ran "+totalPlayouts+" playouts over "+numWorkers+" trees in "+((System.nanoTime() - searchStart) / 1000000)+"ms");
+        return merged;
+    }
+
+    /**
+     * Adds one tree's statistics for a root move to the combined statistics.
+     */
+    static void mergeMove(List<MergedMove> merged, Game.Event move, int visits, double observedUtility) {
+        MergedMove into = null;
+        for (MergedMove candidate : merged) {
+            if (sameMove(candidate.move, move)) {
+                into = candidate;
+                break;
             }
         }
+        if (into == null) {
+            into = new MergedMove(move);
+            merged.add(into);
+        }
+        into.visits += visits;
+        into.observedUtility += observedUtility;
+    }
 
-        log.info("MCTS results:");
-        for (GameTreeNode node : root.children) {
-            double avgUtil = node.observedUtility / node.timesVisited;
-            double uct = (node.observedUtility / node.timesVisited) + explorationConstant*Math.sqrt(Math.log(root.timesVisited)/node.timesVisited);
-            log.info("\t"+node.originalEvent+": "+node.timesVisited+", avg util: "+avgUtil+", UCT: "+uct);
+    /**
+     * The combined statistics for one root move across all the trees of a root-parallel search.
+     */
+    static class MergedMove {
+        Game.Event move;
+        int visits = 0;
+        double observedUtility = 0.0;
+
+        MergedMove(Game.Event move) {
+            this.move = move;
+        }
+    }
+
+    /**
+     * @param maxNodes the size of arena we need
+     * @return an empty arena, reusing one from an earlier search if we can
+     */
+    private SearchArena takeArena(int maxNodes) {
+        SearchArena arena = spareArenas.poll();
+        if (arena == null || arena.getMaxNodes() != maxNodes) arena = new SearchArena(maxNodes);
+        return arena;
+    }
+
+    private void recycleArena(SearchArena arena) {
+        arena.reset();
+        spareArenas.offer(arena);
+    }
+
+    /**
+     * The tree from the last search on a game, and enough information to check that the game has only moved forward
+     * since then.
+     */
+    static class PreviousSearch {
+        SearchArena arena;
+        int root;
+        int depth;
+        Game.Event top;
+        long time;
+
+        PreviousSearch(SearchArena arena, int root, Game game) {
+            this.arena = arena;
+            this.root = root;
+            depth = game.stack.size();
+            top = game.stack.empty() ? null : game.stack.peek();
+            time = game.timeSinceGameStart;
         }
+    }
+
+    /**
+     * Looks for the last search we ran on this game, and walks down it along the events that have been pushed onto the
+     * game since then (our move, and whatever the environment did). If we find the node where the game is now, that
+     * subtree is copied into the new search's arena, statistics and all, and becomes the root of the new search. Either
+     * way, the old search's arena is recycled.
+     *
+     * @param game the game we're about to search
+     * @param arena the (empty) arena for the new search
+     * @return the root node for the current state of the game, or NONE if we don't have a tree that matches
+     */
+    private int reuseSubtree(Game game, SearchArena arena) {
+        PreviousSearch previous = previousSearches.remove(game);
+        if (previous == null) return SearchArena.NONE;
+        try {
+            if (game.stack.size() <= previous.depth) return SearchArena.NONE;
+            if (previous.depth > 0 && game.stack.get(previous.depth - 1) != previous.top) return SearchArena.NONE;
+
+            SearchArena old = previous.arena;
+            int cursor = previous.root;
+            for (int i = previous.depth; i < game.stack.size(); i++) {
+                // Events that point back down the stack also have to point at the same place, or a human could end up
+                // answering a different job posting than the one the tree below thinks is still open
+                Game.Event real = game.stack.get(i);
+                int pointer = needsReconstruction(real) ? referenceEqualityStackIndexOf(game, pointerOf(real)) : -1;
 
-        GameTreeNode choiceNode = root.maxChoiceBy((node) -> (node.observedUtility / node.timesVisited));
-        assert(choiceNode != null);
-        choiceNode.ensureEventFor(game);
-        return choiceNode.gameEventMap.get(game);
+                int next = SearchArena.NONE;
+                for (int child = old.firstChild(cursor); child != SearchArena.NONE; child = old.nextSibling(child)) {
+                    if (sameMove(old.event(child), real) && old.getReconstructionPointer(child) == pointer) {
+                        next = child;
+                        break;
+                    }
+                }
+                if (next == SearchArena.NONE) return SearchArena.NONE;
+                cursor = next;
+            }
+
+            // The real events almost never happen at exactly the times we sampled, so we shift everything below the new
+            // root to line up with the real clock. The old transposition keys include times, so only the root goes in
+            // the new table, but nodes that shared statistics in the old tree still share them in the new one.
+
+            long sampledDelay = old.event(cursor).timeSinceGameStart - previous.time;
+            long realDelay = game.timeSinceGameStart - previous.time;
+            long timeShift = realDelay - sampledDelay;
+            int[] copies = new int[old.size()];
+            Arrays.fill(copies, SearchArena.NONE);
+
+            int root = arena.allocate(null);
+            arena.registerTransposition(root, transpositionKey(game));
+            arena.observeUtility(root, old.visits(cursor), old.observedUtility(cursor));
+            copies[old.statistics(cursor)] = root;
+
+            if (!copyChildren(old, cursor, arena, root, timeShift, copies)) {
+                arena.reset();
+                return SearchArena.NONE;
+            }
+            return root;
+        }
+        finally {
+            recycleArena(previous.arena);
+        }
     }
 
-    public void playOut(GameTreeNode head, Random r, Game game, Function<Game, Double> utility) {
-        Stack<GameTreeNode> visited = new Stack<>();
+    /**
+     * Copies the children of a node in one arena, and all their descendants, under a node in another.
+     *
+     * @param copies for each statistics slot in the old arena, the node that holds those statistics in the new one
+     * @return false if we ran out of space in the new arena
+     */
+    private boolean copyChildren(SearchArena old, int from, SearchArena arena, int to, long timeShift, int[] copies) {
+        int[] children = new int[old.childCount(from)];
+        int numChildren = 0;
+        for (int child = old.firstChild(from); child != SearchArena.NONE; child = old.nextSibling(child)) {
+            if (numChildren == children.length) children = Arrays.copyOf(children, children.length * 2 + 1);
+            children[numChildren++] = child;
+        }
+
+        // Children are added to the front of the list, so go oldest first to keep the order
+
+        for (int i = numChildren - 1; i >= 0; i--) {
+            int child = children[i];
+            // Shift a copy, so nothing else that still holds the old event sees its time change under it
+            Game.Event e = shiftedCopy(old.event(child), timeShift);
+
+            int copy = arena.allocate(e);
+            if (copy == SearchArena.NONE) return false;
+            arena.setReconstructionPointer(copy, old.getReconstructionPointer(child));
+            arena.setPrior(copy, old.getPrior(child));
+
+            int stats = old.statistics(child);
+            if (copies[stats] != SearchArena.NONE) {
+                arena.shareStatistics(copy, copies[stats]);
+            }
+            else {
+                copies[stats] = copy;
+                arena.observeUtility(copy, old.visits(child), old.observedUtility(child));
+            }
+
+            if (isGameplayerMove(e)) arena.registerChild(to, moveDescriptor(e), copy);
+            arena.addChild(to, arena.firstChild(to), copy);
+            if (!copyChildren(old, child, arena, copy, timeShift, copies)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether two events represent the same move, ignoring when they happened. Humans are compared by the order
+     * in which they arrived, since the real game and the search tree have different objects for them.
+     */
+    static boolean sameMove(Game.Event a, Game.Event b) {
+        if (a.getClass() != b.getClass()) return false;
+        if (a instanceof Game.QueryLaunch) {
+            Game.QueryLaunch qa = (Game.QueryLaunch)a;
+            Game.QueryLaunch qb = (Game.QueryLaunch)b;
+            return qa.variable == qb.variable && qa.human.slot == qb.human.slot;
+        }
+        else if (a instanceof Game.QueryResponse) {
+            Game.QueryResponse ra = (Game.QueryResponse)a;
+            Game.QueryResponse rb = (Game.QueryResponse)b;
+            return ra.response == rb.response && sameMove(ra.request, rb.request);
+        }
+        else if (a instanceof Game.QueryFailure) {
+            return sameMove(((Game.QueryFailure)a).request, ((Game.QueryFailure)b).request);
+        }
+        else if (a instanceof Game.HumanExit) {
+            return ((Game.HumanExit)a).human.slot == ((Game.HumanExit)b).human.slot;
+        }
+        else if (a instanceof Game.HumanRelease) {
+            return ((Game.HumanRelease)a).human.slot == ((Game.HumanRelease)b).human.slot;
+        }
+        // HumanArrival, HumanJobPosting, Wait and TurnIn are all interchangeable with others of their type
+        return true;
+    }
+
+    /**
+     * Decides whether a search thread should run another playout.
+     *
+     * @param playoutsSoFar the number of playouts this thread has already run for this move
+     * @param playoutBudget the fixed number of playouts for this thread to run, if we don't have a deadline
+     * @param budget the budget for the whole search
+     * @return whether to keep going
+     */
+    private boolean keepSearching(int playoutsSoFar, int playoutBudget, SearchBudget budget) {
+        // Always get at least one playout in, so that we have something to go on
+        if (playoutsSoFar == 0) return true;
+        if (budget.deadline == 0 && playoutsSoFar >= playoutBudget) return false;
+        if (budget.deadline != 0 && System.nanoTime() >= budget.deadline) return false;
+        return !budget.isSettled();
+    }
+
+    /**
+     * How much search one move has left, and whether the answer is already settled so we can stop early.
+     */
+    class SearchBudget {
+        final SearchArena arena;
+        final int root;
+        final int rootMoves;
+        final int startVisits;
+        final int totalPlayouts;
+        final long searchStart;
+        final long deadline;
+
+        volatile boolean settled = false;
+        volatile long settledWithRemaining = 0;
+
+        /**
+         * @param rootMoves the number of legal moves at the root
+         * @param totalPlayouts the number of playouts all the threads will run together, if there's no deadline
+         * @param deadline the System.nanoTime() when the search must stop, or 0 if there's no deadline
+         */
+        SearchBudget(SearchArena arena, int root, int rootMoves, int totalPlayouts, long searchStart, long deadline) {
+            this.arena = arena;
+            this.root = root;
+            this.rootMoves = rootMoves;
+            this.startVisits = arena.visits(root);
+            this.totalPlayouts = totalPlayouts;
+            this.searchStart = searchStart;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return how many more playouts we expect to run. With a deadline, that's a guess from the rate so far.
+         */
+        long remainingPlayouts() {
+            int done = arena.visits(root) - startVisits;
+            if (deadline == 0) return Math.max(0, totalPlayouts - done);
+            long now = System.nanoTime();
+            if (now >= deadline) return 0;
+            if (done == 0 || now == searchStart) return Long.MAX_VALUE;
+            return (long)Math.ceil(done * (double)(deadline - now) / (now - searchStart));
+        }
+
+        /**
+         * Checks whether any root move could still overtake the current best with the playouts we have left. This is
+         * cheap next to a playout, so every thread checks before every playout.
+         */
+        boolean isSettled() {
+            if (settled) return true;
+            if (!earlyStopping) return false;
+
+            // Until every legal move has been tried, some rival has no statistics to bound
+            if (arena.childCount(root) < rootMoves) return false;
+            if (arena.visits(root) - startVisits < earlyStopMinPlayouts) return false;
+
+            double minUtility = arena.getMinUtility();
+            double maxUtility = arena.getMaxUtility();
+            if (minUtility > maxUtility) return false;
+
+            int best = maxChildBy(arena, root, (child) -> arena.visits(child) == 0 ? Double.NEGATIVE_INFINITY : arena.averageUtility(child));
+            if (best == SearchArena.NONE || arena.visits(best) == 0) return false;
+            int bestVisits = arena.visits(best);
+            double bestAverage = arena.averageUtility(best);
+
+            long remaining = remainingPlayouts();
+            if (remaining == Long.MAX_VALUE) return false;
+
+            // The worst the best move could do is have every remaining playout come back as badly as anything we've seen
+            double bestPessimistic = (arena.observedUtility(best) + remaining * minUtility) / (bestVisits + remaining);
+            double hoeffding = earlyStopErrorRate > 0 ? (maxUtility - minUtility) * Math.sqrt(Math.log(1.0 / earlyStopErrorRate) / 2) : 0.0;
+
+            for (int child = arena.firstChild(root); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+                if (child == best) continue;
+                int visits = arena.visits(child);
+                if (visits == 0) return false;
+
+                // The best a rival could do is get every remaining playout, and have them all come back as well as
+                // anything we've seen
+                double optimistic = (arena.observedUtility(child) + remaining * maxUtility) / (visits + remaining);
+                if (optimistic < bestPessimistic) continue;
+
+                if (earlyStopErrorRate > 0 && visits > 0 &&
+                        bestAverage - hoeffding / Math.sqrt(bestVisits) > arena.averageUtility(child) + hoeffding / Math.sqrt(visits)) {
+                    continue;
+                }
+
+                return false;
+            }
+
+            if (!settled) {
+                settledWithRemaining = remaining;
+                settled = true;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return what scores playouts that get cut off before the end of the game, for a search maximizing utility
+     */
+    private Function<Game, Double> leafEvaluatorFor(Function<Game, Double> utility) {
+        return leafEvaluator != null ? leafEvaluator : new UncertaintyUtilityEstimate(utility);
+    }
+
+    /**
+     * Runs a single playout from a node, and backpropagates the result.
+     *
+     * @param thread the index of the search thread running this playout. Every thread searching the same arena at the
+     *               same time needs a different index, and should always use the same game.
+     */
+    public void playOut(SearchArena arena, int head, int thread, Random r, Game game, Function<Game, Double> utility) {
+        playOut(arena, head, thread, r, game, utility, leafEvaluatorFor(utility));
+    }
+
+    /**
+     * The same as above, with the leaf evaluator built once for the whole search, since this runs for every playout.
+     *
+     * @param leafUtility scores the game if the playout is cut off before the end, see leafEvaluatorFor()
+     */
+    void playOut(SearchArena arena, int head, int thread, Random r, Game game, Function<Game, Double> utility,
+                 Function<Game, Double> leafUtility) {
+        int[] visited = new int[32];
+        int numVisited = 0;
+        EventStack rollout = null;
+        int depthLimit = maxSimulationDepth > 0 ? maxSimulationDepth : Integer.MAX_VALUE;
 
         // Run one time through a game
 
-        GameTreeNode cursor = head;
+        int cursor = head;
         while (true) {
-            visited.add(cursor);
-            cursor.push(game);
-            if (game.isTerminated()) break;
+            if (numVisited == visited.length) visited = Arrays.copyOf(visited, visited.length * 2);
+            visited[numVisited++] = cursor;
+            boolean firstVisit = arena.beginVisit(cursor, virtualLoss) == 1;
+            push(arena, cursor, thread, game);
+            if (game.isTerminated() || numVisited > depthLimit) break;
+            // Past the frontier of the tree, finish the game cheaply
+            if (firstVisit && rolloutPolicy != null) {
+                rollout = rollOut(game, r, utility, depthLimit - (numVisited - 1));
+                break;
+            }
+            int next;
             if (game.isGameplayerTurn()) {
-                cursor = pickOrCreateGameplayerChoice(cursor, game, r);
+                next = pickOrCreateGameplayerChoice(arena, cursor, thread, game, r);
             }
             else {
-                cursor = pickOrCreateEnvironmentEvent(cursor, game, r);
+                next = pickOrCreateEnvironmentEvent(arena, cursor, thread, game, r);
+            }
+            // If the arena is full and we've hit the edge of the tree, finish the game without it
+            if (next == SearchArena.NONE) {
+                rollout = rollOut(game, r, utility, depthLimit - (numVisited - 1));
+                break;
             }
+            cursor = next;
         }
 
-        double observedUtility = utility.apply(game);
+        double observedUtility;
+        if (game.isTerminated()) observedUtility = utility.apply(game);
+        else observedUtility = leafUtility.apply(game);
+        arena.recordUtility(observedUtility);
 
         // Backprop through the visited set
 
-        while (!visited.empty()) {
-            GameTreeNode node = visited.pop();
-            node.pop(game);
-            node.observeUtility(observedUtility);
+        if (rollout != null) {
+            while (!rollout.empty()) rollout.pop().pop(game);
         }
+        while (numVisited > 0) {
+            int node = visited[--numVisited];
+            pop(arena, node, thread, game);
+            arena.endVisit(node, observedUtility, virtualLoss);
+        }
+    }
+
+    /**
+     * Plays the rollout policy (or random moves, if there isn't one) until the game ends, without recording anything in
+     * the tree.
+     *
+     * @param maxEvents the most events to push before giving up on reaching the end of the game
+     * @return the events that were pushed, which the caller must pop
+     */
+    private EventStack rollOut(Game game, Random r, Function<Game, Double> utility, int maxEvents) {
+        RolloutPolicy policy = rolloutPolicy != null ? rolloutPolicy : RolloutPolicy.RANDOM;
+        EventStack pushed = new EventStack();
+        while (!game.isTerminated() && pushed.size() < maxEvents) {
+            Game.Event e;
+            if (game.isGameplayerTurn()) {
+                e = policy.getNextMove(game, utility, r);
+            }
+            else {
+                e = game.sampleNextEvent(r);
+            }
+            e.push(game);
+            pushed.push(e);
+        }
+        return pushed;
     }
 
     /**
      * This uses UCT to pick an exploration candidate.
+     *
+     * @return the chosen child, or NONE if there are no children and the arena is full
      */
-    public GameTreeNode pickOrCreateGameplayerChoice(GameTreeNode node, Game game, Random r) {
+    public int pickOrCreateGameplayerChoice(SearchArena arena, int node, int thread, Game game, Random r) {
         Game.Event[] choices = game.getLegalMoves();
+        double[] priors = null;
 
-        synchronized (node) {
+        while (true) {
+            // UCT requires that we visit everything once before branching out. Every child is a legal move, so once
+            // there are as many children as legal moves we know we're done. Until then, the expansion cursor remembers
+            // where we got to, so we don't keep checking the moves we've already expanded. With a prior, we only
+            // widen as the node gets visited, and we go through the moves best first.
 
-            // UCT requires that we visit everything once before branching out
+            int allowedChildren = choices.length;
+            if (movePrior != null) {
+                allowedChildren = Math.min(choices.length, 1 + (int)Math.sqrt(arena.visits(node)));
+            }
 
-            for (Game.Event e : choices) {
-                boolean containsEquivalent = false;
-                for (GameTreeNode child : node.children) {
-                    if (child.originalEvent.equals(e)) {
-                        containsEquivalent = true;
+            Game.Event unexpanded = null;
+            double unexpandedPrior = 0.0;
+            if (arena.childCount(node) < allowedChildren) {
+                if (movePrior != null && priors == null) {
+                    priors = sortByPrior(game, choices);
+                }
+                int start = arena.getExpansionCursor(node);
+                for (int k = 0; k < choices.length; k++) {
+                    int i = (start + k) % choices.length;
+                    if (findChild(arena, node, choices[i]) == SearchArena.NONE) {
+                        unexpanded = choices[i];
+                        if (priors != null) unexpandedPrior = priors[i];
+                        arena.setExpansionCursor(node, i);
                         break;
                     }
                 }
-                if (!containsEquivalent) {
-                    GameTreeNode next = new GameTreeNode(game, e);
-                    node.children.add(next);
-                    return next;
-                }
             }
 
-            // If we've already visited everything, we need to be clever about exploitation vs exploration
+            int next = unexpanded == null ? SearchArena.NONE : newNode(arena, game, thread, unexpanded);
+            if (next != SearchArena.NONE) {
+                arena.setPrior(next, unexpandedPrior);
+
+                // If another thread expanded this move first, look at the children again. If a different move just
+                // happens to have the same descriptor, this one goes in the tree without being indexed.
+
+                int registered = arena.registerChild(node, moveDescriptor(unexpanded), next);
+                if (registered != next && sameMove(arena.event(registered), unexpanded)) continue;
+
+                // Nobody else can add this move now, so keep trying until it's in
+                while (!arena.addChild(node, arena.firstChild(node), next));
+
+                // If we've seen this state by another path, we might already know enough to skip straight to
+                // exploiting it, so only stop here if we haven't.
+
+                if (arena.visits(next) == 0) return next;
+                continue;
+            }
+            if (arena.firstChild(node) == SearchArena.NONE) return SearchArena.NONE;
+
+            // If we've already visited everything (or can't expand any further), we need to be clever about
+            // exploitation vs exploration. Children that share statistics with a transposition may be mid-visit by
+            // another thread, so anything unvisited goes first.
+
+            int parentVisits = arena.visits(node);
+            return maxChildBy(arena, node, (child) -> arena.visits(child) == 0 ? Double.POSITIVE_INFINITY :
+                    arena.averageUtility(child) + explorationConstant * Math.sqrt(Math.log(parentVisits) / arena.visits(child)) +
+                    priorWeight * arena.getPrior(child) / (arena.visits(child) + 1));
+        }
+    }
+
+    /**
+     * Sorts the moves from best to worst prior score, in place.
+     *
+     * @return the prior scores, in the new order of the moves
+     */
+    private double[] sortByPrior(Game game, Game.Event[] moves) {
+        double[] scores = movePrior.score(game, moves);
+        Integer[] order = new Integer[moves.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        // This is a stable sort, so ties keep the order getLegalMoves() gave them
+        Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        Game.Event[] sortedMoves = new Game.Event[moves.length];
+        double[] sortedScores = new double[moves.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedMoves[i] = moves[order[i]];
+            sortedScores[i] = scores[order[i]];
+        }
+        System.arraycopy(sortedMoves, 0, moves, 0, moves.length);
+        return sortedScores;
+    }
+
+    /**
+     * Packs the parts of a gameplayer move that distinguish it from the other moves at the same node into an int: the type
+     * of move, and for query launches, the variable and the arrival slot of the human. These are exact for up to 2^16
+     * variables and 2^14 humans, and collide (harmlessly, but slowly) beyond that.
+     */
+    static int moveDescriptor(Game.Event e) {
+        if (e instanceof Game.QueryLaunch) {
+            Game.QueryLaunch ql = (Game.QueryLaunch)e;
+            return (((ql.variable << 14) ^ ql.human.slot) << 2) | 3;
+        }
+        else if (e instanceof Game.HumanJobPosting) return 2;
+        else if (e instanceof Game.Wait) return 1;
+        else return 0;
+    }
+
+    /**
+     * @return the child of node for this move, or NONE if it hasn't been expanded yet
+     */
+    static int findChild(SearchArena arena, int node, Game.Event move) {
+        int child = arena.findChild(node, moveDescriptor(move));
+        if (child == SearchArena.NONE) return SearchArena.NONE;
+        if (sameMove(arena.event(child), move)) return child;
 
-            GameTreeNode choice = node.maxChoiceBy((child) -> (child.observedUtility / child.timesVisited) + explorationConstant * Math.sqrt(Math.log(node.timesVisited) / child.timesVisited));
-            assert(choice != null);
-            return choice;
+        // Descriptor collision, so fall back to looking at every child
+
+        for (child = arena.firstChild(node); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+            if (sameMove(arena.event(child), move)) return child;
         }
+        return SearchArena.NONE;
     }
 
     /**
      * This uses progressive widening and biased random selection to pick a child of the environment.
+     *
+     * @return the chosen child, or NONE if there are no children and the arena is full
      */
-    public GameTreeNode pickOrCreateEnvironmentEvent(GameTreeNode node, Game game, Random r) {
-        synchronized (node) {
-            int progressiveWidening = (int) Math.max(Math.ceil(Math.sqrt(node.timesVisited)), 1);
+    public int pickOrCreateEnvironmentEvent(SearchArena arena, int node, int thread, Game game, Random r) {
+        boolean deterministic = game.isNextSampleEventDeterministic();
+
+        while (true) {
+            int first = arena.firstChild(node);
+            int progressiveWidening = (int) Math.max(Math.ceil(Math.sqrt(arena.visits(node))), 1);
 
-            if ((game.isNextSampleEventDeterministic() && node.children.size() == 0) ||
-                    (!game.isNextSampleEventDeterministic() && node.children.size() < progressiveWidening)) {
+            if ((deterministic && first == SearchArena.NONE) || (!deterministic && arena.childCount(node) < progressiveWidening)) {
                 Game.Event e = game.sampleNextEvent(r);
-                GameTreeNode next = new GameTreeNode(game, e);
-                node.children.add(next);
-                return next;
-            } else if (node.children.size() == 1) {
-                return node.children.iterator().next();
+                int next = newNode(arena, game, thread, e);
+                if (next != SearchArena.NONE) {
+                    if (arena.addChild(node, first, next)) return next;
+                    // Another thread got here first, so look at the children again
+                    continue;
+                }
+                if (first == SearchArena.NONE) return SearchArena.NONE;
+            }
+
+            if (arena.nextSibling(first) == SearchArena.NONE) {
+                return first;
             } else {
 
                 // Choose event according to its probability under our model relative to the others,
                 // currently by ignoring time.
 
-                double[][] currentMarginals = node.getMarginals(game);
+                double[][] currentMarginals = game.getMarginals();
 
                 double totalScore = 0.0;
 
-                for (GameTreeNode child : node.children) {
-                    assert (child.originalEvent instanceof Game.QueryResponse);
-                    Game.QueryResponse qr = (Game.QueryResponse) child.originalEvent;
+                for (int child = first; child != SearchArena.NONE; child = arena.nextSibling(child)) {
+                    assert (arena.event(child) instanceof Game.QueryResponse);
+                    Game.QueryResponse qr = (Game.QueryResponse) arena.event(child);
                     totalScore += currentMarginals[qr.request.variable][qr.response];
                 }
 
                 double randomSelection = r.nextDouble() * totalScore;
-                for (GameTreeNode child : node.children) {
-                    Game.QueryResponse qr = (Game.QueryResponse) child.originalEvent;
+                for (int child = first; child != SearchArena.NONE; child = arena.nextSibling(child)) {
+                    Game.QueryResponse qr = (Game.QueryResponse) arena.event(child);
                     double score = currentMarginals[qr.request.variable][qr.response];
                     randomSelection -= score;
                     if (randomSelection <= 0) return child;
@@ -205,125 +1065,163 @@ public class GamePlayerMCTS extends GamePlayer {
         }
     }
 
-    public static class GameTreeNode {
-        Game.Event originalEvent = null;
-        Map<Game, Game.Event> gameEventMap = new IdentityHashMap<>();
-        int reconstructionPointer = 0;
+    /**
+     * This gets the key that identifies a state in the transposition table. On top of the Game's own state hash, we need
+     * to know whose turn it is, whether the game is over, and the time, which the utility and the sampled return times
+     * both depend on.
+     */
+    public static long transpositionKey(Game game) {
+        long key = game.getStateHash();
+        key = key * 31 + game.timeSinceGameStart;
+        key = key * 31 + (game.isGameplayerTurn() ? 1 : 0);
+        key = key * 31 + (game.isTerminated() ? 1 : 0);
+        return key;
+    }
 
-        List<GameTreeNode> children = new ArrayList<>();
+    /**
+     * Creates a node that isn't attached to the tree yet, sharing statistics with any other node that reaches the same
+     * state.
+     *
+     * @param arena the arena for this search
+     * @param game the game, in the state that e would be pushed onto
+     * @param thread the index of the search thread that owns game, which gets e as its copy of the event
+     * @param e the event this node pushes, or null for the root
+     * @return the new node, or NONE if the arena is full
+     */
+    private static int newNode(SearchArena arena, Game game, int thread, Game.Event e) {
+        int node = arena.allocate(e);
+        if (node == SearchArena.NONE) return SearchArena.NONE;
 
-        double observedUtility = 0.0;
-        int timesVisited = 0;
+        // Find the statistics for the state after this event, shared with any other path that got there
 
-        double[][] marginalsCache = null;
+        if (e != null) e.push(game);
+        arena.registerTransposition(node, transpositionKey(game));
+        if (e != null) e.pop(game);
 
-        public GameTreeNode(Game game, Game.Event e) {
-            originalEvent = e;
-            if (e != null) {
-                gameEventMap.put(game, e);
-                if (e instanceof Game.HumanArrival) {
-                    Game.HumanArrival ha = (Game.HumanArrival)e;
-                    reconstructionPointer = referenceEqualityStackIndexOf(game, ha.respondingTo);
-                }
-                else if (e instanceof Game.QueryLaunch) {
-                    Game.QueryLaunch ql = (Game.QueryLaunch)e;
-                    reconstructionPointer = referenceEqualityStackIndexOf(game, ql.human);
-                }
-                else if (e instanceof Game.QueryResponse) {
-                    Game.QueryResponse ql = (Game.QueryResponse)e;
-                    reconstructionPointer = referenceEqualityStackIndexOf(game, ql.request);
-                }
-                else if (e instanceof Game.QueryFailure) {
-                    Game.QueryFailure qf = (Game.QueryFailure)e;
-                    reconstructionPointer = referenceEqualityStackIndexOf(game, qf.request);
-                }
-            }
+        if (needsReconstruction(e)) {
+            arena.setReconstructionPointer(node, referenceEqualityStackIndexOf(game, pointerOf(e)));
+            if (thread != NO_THREAD) arena.setThreadEvent(node, thread, e);
         }
 
-        private int referenceEqualityStackIndexOf(Game game, Game.Event e) {
-            for (int i = 0; i < game.stack.size(); i++) {
-                if (game.stack.get(i) == e) return i;
-            }
-            throw new IllegalStateException("Should never call this function if e isn't on the stack of game");
-        }
+        return node;
+    }
 
-        public void observeUtility(double utility) {
-            observedUtility += utility;
-            timesVisited ++;
-        }
+    /**
+     * @return the event on the stack that this event points at, or null if it doesn't point at one
+     */
+    private static Game.Event pointerOf(Game.Event e) {
+        if (e instanceof Game.HumanArrival) return ((Game.HumanArrival)e).respondingTo;
+        else if (e instanceof Game.QueryLaunch) return ((Game.QueryLaunch)e).human;
+        else if (e instanceof Game.QueryResponse) return ((Game.QueryResponse)e).request;
+        else if (e instanceof Game.QueryFailure) return ((Game.QueryFailure)e).request;
+        else if (e instanceof Game.HumanExit) return ((Game.HumanExit)e).human;
+        else if (e instanceof Game.HumanRelease) return ((Game.HumanRelease)e).human;
+        else return null;
+    }
 
-        public double[][] getMarginals(Game game) {
-            if (marginalsCache == null) {
-                marginalsCache = game.getMarginals();
-            }
-            return marginalsCache;
-        }
+    /**
+     * @return a copy of an event happening timeShift later, pointing at the same events as the original
+     */
+    static Game.Event shiftedCopy(Game.Event e, long timeShift) {
+        Map<Game.Event, Game.Event> pointers = new IdentityHashMap<>();
+        Game.Event pointer = pointerOf(e);
+        if (pointer != null) pointers.put(pointer, pointer);
 
-        public GameTreeNode maxChoiceBy(Function<GameTreeNode, Double> scoring) {
-            double bestValue = Double.NEGATIVE_INFINITY;
-            GameTreeNode bestChoice = null;
+        Game.Event copy = e.clone(pointers);
+        if (e instanceof Game.HumanArrival) ((Game.HumanArrival)copy).slot = ((Game.HumanArrival)e).slot;
+        copy.timeSinceGameStart += timeShift;
+        return copy;
+    }
 
-            for (GameTreeNode child : children) {
-                double score = scoring.apply(child);
-                if (score > bestValue || bestChoice == null) {
-                    bestValue = score;
-                    bestChoice = child;
-                }
-            }
+    /**
+     * @return whether an event is one the gameplayer makes, rather than the environment
+     */
+    private static boolean isGameplayerMove(Game.Event e) {
+        return e instanceof Game.QueryLaunch ||
+                e instanceof Game.HumanJobPosting ||
+                e instanceof Game.Wait ||
+                e instanceof Game.TurnIn;
+    }
 
-            return bestChoice;
-        }
+    /**
+     * @return whether an event points at other events on the stack, and so needs a separate copy for each game
+     */
+    private static boolean needsReconstruction(Game.Event e) {
+        return e instanceof Game.HumanArrival ||
+                e instanceof Game.QueryLaunch ||
+                e instanceof Game.QueryResponse ||
+                e instanceof Game.QueryFailure;
+    }
 
-        /**
-         * In order to be thread-safe, each game needs its own actions, with its own pointers, to apply to its own games.
-         * @param game the game object for this thread
-         */
-        public void ensureEventFor(Game game) {
-            if (!gameEventMap.containsKey(game)) {
-                if (originalEvent instanceof Game.HumanArrival) {
-                    Game.HumanArrival ha = (Game.HumanArrival)originalEvent;
-                    Game.HumanArrival clone = new Game.HumanArrival(ha.humanErrorModel,
-                            ha.delayModel,
-                            (Game.HumanJobPosting)game.stack.get(reconstructionPointer),
-                            ha.metaData);
-                    clone.timeSinceGameStart = originalEvent.timeSinceGameStart;
-                    gameEventMap.put(game, clone);
-                }
-                else if (originalEvent instanceof Game.QueryLaunch) {
-                    Game.QueryLaunch ql = (Game.QueryLaunch)originalEvent;
-                    Game.QueryLaunch clone = new Game.QueryLaunch(ql.variable, (Game.HumanArrival)game.stack.get(reconstructionPointer));
-                    clone.timeSinceGameStart = originalEvent.timeSinceGameStart;
-                    gameEventMap.put(game, clone);
-                }
-                else if (originalEvent instanceof Game.QueryResponse) {
-                    Game.QueryResponse qr = (Game.QueryResponse)originalEvent;
-                    Game.QueryResponse clone = new Game.QueryResponse((Game.QueryLaunch)game.stack.get(reconstructionPointer), qr.response);
-                    clone.timeSinceGameStart = originalEvent.timeSinceGameStart;
-                    gameEventMap.put(game, clone);
-                }
-                else if (originalEvent instanceof Game.QueryFailure) {
-                    Game.QueryFailure qf = (Game.QueryFailure)originalEvent;
-                    Game.QueryFailure clone = new Game.QueryFailure((Game.QueryLaunch)game.stack.get(reconstructionPointer));
-                    clone.timeSinceGameStart = originalEvent.timeSinceGameStart;
-                    gameEventMap.put(game, clone);
-                }
-                else {
-                    // The non-pointer event types shouldn't matter if they get reused by multiple threads
-                    gameEventMap.put(game, originalEvent);
-                }
+    private static int referenceEqualityStackIndexOf(Game game, Game.Event e) {
+        int i = game.stack.indexOfIdentical(e);
+        if (i != -1) return i;
+        throw new IllegalStateException("Should never call this function if e isn't on the stack of game");
+    }
+
+    private static int maxChildBy(SearchArena arena, int node, IntToDoubleFunction scoring) {
+        double bestValue = Double.NEGATIVE_INFINITY;
+        int bestChoice = SearchArena.NONE;
+
+        for (int child = arena.firstChild(node); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+            double score = scoring.applyAsDouble(child);
+            if (score > bestValue || bestChoice == SearchArena.NONE) {
+                bestValue = score;
+                bestChoice = child;
             }
         }
 
-        public void push(Game game) {
-            if (originalEvent == null) return;
-            ensureEventFor(game);
-            gameEventMap.get(game).push(game);
-        }
+        return bestChoice;
+    }
+
+    /**
+     * In order to be thread-safe, each game needs its own actions, with its own pointers, to apply to its own games. Each
+     * search thread keeps its copies in its own slot in the arena, so finding them is just an array lookup.
+     *
+     * @param thread the index of the search thread that owns game, or NO_THREAD to build a copy without keeping it
+     * @param game the game object for this thread
+     * @return the copy of this node's event for that game
+     */
+    private static Game.Event eventFor(SearchArena arena, int node, int thread, Game game) {
+        Game.Event originalEvent = arena.event(node);
+        int reconstructionPointer = arena.getReconstructionPointer(node);
+        // The non-pointer event types shouldn't matter if they get reused by multiple threads
+        if (reconstructionPointer == -1) return originalEvent;
 
-        public void pop(Game game) {
-            if (originalEvent == null) return;
-            gameEventMap.get(game).pop(game);
+        Game.Event e = thread == NO_THREAD ? null : arena.getThreadEvent(node, thread);
+        if (e == null) {
+            if (originalEvent instanceof Game.HumanArrival) {
+                Game.HumanArrival ha = (Game.HumanArrival)originalEvent;
+                e = new Game.HumanArrival(ha.humanErrorModel,
+                        ha.delayModel,
+                        (Game.HumanJobPosting)game.stack.get(reconstructionPointer),
+                        ha.metaData);
+            }
+            else if (originalEvent instanceof Game.QueryLaunch) {
+                Game.QueryLaunch ql = (Game.QueryLaunch)originalEvent;
+                e = new Game.QueryLaunch(ql.variable, (Game.HumanArrival)game.stack.get(reconstructionPointer));
+            }
+            else if (originalEvent instanceof Game.QueryResponse) {
+                Game.QueryResponse qr = (Game.QueryResponse)originalEvent;
+                e = new Game.QueryResponse((Game.QueryLaunch)game.stack.get(reconstructionPointer), qr.response);
+            }
+            else {
+                e = new Game.QueryFailure((Game.QueryLaunch)game.stack.get(reconstructionPointer));
+            }
+            e.timeSinceGameStart = originalEvent.timeSinceGameStart;
+            if (thread != NO_THREAD) arena.setThreadEvent(node, thread, e);
         }
+        return e;
+    }
+
+    private static void push(SearchArena arena, int node, int thread, Game game) {
+        if (arena.event(node) == null) return;
+        eventFor(arena, node, thread, game).push(game);
+    }
+
+    private static void pop(SearchArena arena, int node, int thread, Game game) {
+        if (arena.event(node) == null) return;
+        eventFor(arena, node, thread, game).pop(game);
     }
 
     public static boolean assertsEnabled() {
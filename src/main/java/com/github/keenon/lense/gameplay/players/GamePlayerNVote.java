@@ -3,6 +3,7 @@ package com.github.keenon.lense.gameplay.players;
 import com.github.keenon.lense.gameplay.Game;
 import com.github.keenon.lense.storage.ModelQueryRecord;
 
+import java.util.BitSet;
 import java.util.function.Function;
 
 /**
@@ -24,6 +25,8 @@ public class GamePlayerNVote extends GamePlayer {
     public Game.Event getNextMove(Game game, Function<Game, Double> utility) {
 
         boolean wantedToLaunchQuery = false;
+        // The slots of the humans that have a query in flight, which we only work out if we need to
+        BitSet busy = null;
 
         for (int i = 0; i < game.variableSizes.length; i++) {
             // Skip examples with missing variables
@@ -39,7 +42,8 @@ public class GamePlayerNVote extends GamePlayer {
                 observations += ModelQueryRecord.getQueryRecordFor(game.model).getResponses(i).size();
             }
             else {
-                for (Game.Event event : game.stack) {
+                for (int j = 0; j < game.stack.size(); j++) {
+                    Game.Event event = game.stack.get(j);
                     if (event instanceof Game.QueryResponse) {
                         Game.QueryResponse qr = (Game.QueryResponse) event;
                         if (qr.request.variable == i) observations++;
@@ -47,7 +51,7 @@ public class GamePlayerNVote extends GamePlayer {
                 }
             }
             // Check the number of humans we have available to annotate this variable
-            int availableHumans = game.availableAnnotators.get(i).size();
+            int availableHumans = game.annotators.count(i);
             int jobRequestsInFlight = game.jobPostings.size();
 
             // This means we need to launch queries
@@ -65,11 +69,12 @@ public class GamePlayerNVote extends GamePlayer {
                 }
                 // Don't query unless that human is already done with the last task, to avoid query overload
                 else {
-                    outer: for (Game.HumanArrival human : game.availableAnnotators.get(i)) {
-                        for (Game.QueryLaunch ql : game.inFlightRequests) {
-                            if (ql.human == human) continue outer;
-                        }
-                        return new Game.QueryLaunch(i, human);
+                    if (busy == null) {
+                        busy = new BitSet();
+                        for (Game.QueryLaunch ql : game.inFlightRequests) busy.set(ql.human.slot);
+                    }
+                    for (int slot = game.annotators.nextAvailable(i, 0); slot != -1; slot = game.annotators.nextAvailable(i, slot + 1)) {
+                        if (!busy.get(slot)) return new Game.QueryLaunch(i, game.annotators.getHuman(slot));
                     }
                 }
                 // If we reach this point, we want to launch queries but our human is busy
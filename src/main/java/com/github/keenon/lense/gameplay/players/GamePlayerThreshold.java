@@ -48,7 +48,8 @@ public class GamePlayerThreshold extends GamePlayer {
             worstUncertainty *= humanUncertaintyMultiple;
             needJobPostings ++;
         }
-        for (Game.Event e : game.stack) {
+        for (int i = 0; i < game.stack.size(); i++) {
+            Game.Event e = game.stack.get(i);
             if (e instanceof Game.HumanJobPosting) needJobPostings--;
             if (e instanceof Game.HumanExit) needJobPostings++;
         }
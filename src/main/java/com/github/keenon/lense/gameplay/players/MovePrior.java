@@ -0,0 +1,66 @@
+package com.github.keenon.lense.gameplay.players;
+
+import com.github.keenon.lense.gameplay.Game;
+
+/**
+ * Scores the gameplayer's legal moves with a cheap heuristic, before any search has happened. GamePlayerMCTS uses these
+ * scores to decide which moves to expand first, and as a bias on UCT that fades as real playouts come in, so that on wide
+ * action spaces it doesn't have to try every move before it can start exploiting the promising ones.
+ */
+public abstract class MovePrior {
+    /**
+     * @param game the game, which it's the gameplayer's turn in
+     * @param moves the legal moves in game
+     * @return a score in [0, 1] for each move, higher is more promising
+     */
+    public abstract double[] score(Game game, Game.Event[] moves);
+
+    /**
+     * The same reasoning as GamePlayerThreshold: the most uncertain variables are the ones worth asking about, and each
+     * query already in flight on a variable makes asking again less urgent. Turning in or waiting is promising when
+     * everything that's still uncertain already has queries out, and making a job posting is promising when something is
+     * uncertain.
+     */
+    public static class Uncertainty extends MovePrior {
+        public double humanUncertaintyMultiple = 0.3;
+
+        @Override
+        public double[] score(Game game, Game.Event[] moves) {
+            double[][] marginals = game.getMarginals();
+
+            double[] uncertainty = new double[marginals.length];
+            double worstUncertainty = 0.0;
+            for (int i = 0; i < marginals.length; i++) {
+                if (marginals[i] == null) continue;
+
+                double max = 0;
+                for (double d : marginals[i]) if (d > max) max = d;
+                uncertainty[i] = 1.0 - max;
+            }
+            for (Game.QueryLaunch ql : game.inFlightRequests) {
+                uncertainty[ql.variable] *= humanUncertaintyMultiple;
+            }
+            for (double u : uncertainty) {
+                if (u > worstUncertainty) worstUncertainty = u;
+            }
+
+            // Queries are scored relative to the most uncertain variable, so the best query always scores 1. The other
+            // moves go by the worst uncertainty itself, which is at most 0.5 for a binary variable.
+
+            double[] scores = new double[moves.length];
+            for (int i = 0; i < moves.length; i++) {
+                if (moves[i] instanceof Game.QueryLaunch) {
+                    double u = uncertainty[((Game.QueryLaunch)moves[i]).variable];
+                    scores[i] = worstUncertainty > 0 ? u / worstUncertainty : 0.0;
+                }
+                else if (moves[i] instanceof Game.HumanJobPosting) {
+                    scores[i] = Math.min(1.0, 2.0 * worstUncertainty);
+                }
+                else {
+                    scores[i] = 1.0 - Math.min(1.0, 2.0 * worstUncertainty);
+                }
+            }
+            return scores;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.keenon.lense.gameplay.players;
+
+import com.github.keenon.lense.gameplay.Game;
+
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Picks gameplayer moves past the frontier of an MCTS tree, where we want to finish the game quickly rather than search.
+ * This needs to be cheap, since it runs at every step of every playout, and thread-safe, since every search thread
+ * shares the same policy.
+ */
+public abstract class RolloutPolicy {
+    /**
+     * @param game the game, which it's the gameplayer's turn in
+     * @param utility the utility function the search is maximizing
+     * @param r the random stream for the search thread asking
+     * @return the move to make
+     */
+    public abstract Game.Event getNextMove(Game game, Function<Game, Double> utility, Random r);
+
+    /**
+     * Picks uniformly from the legal moves, like GamePlayerRandom, but with the search thread's own random stream.
+     */
+    public static final RolloutPolicy RANDOM = new RolloutPolicy() {
+        @Override
+        public Game.Event getNextMove(Game game, Function<Game, Double> utility, Random r) {
+            Game.Event[] legalMoves = game.getLegalMoves();
+            return legalMoves[r.nextInt(legalMoves.length)];
+        }
+    };
+
+    /**
+     * Uses a GamePlayer's own heuristics for rollouts. Fast players like GamePlayerThreshold and GamePlayerNVote make good
+     * rollout policies, as long as they keep no state of their own between moves.
+     *
+     * Players written for real games don't always stick to the legal moves (GamePlayerThreshold will post a job outside
+     * of production even when it isn't allowed to, for instance), and an illegal move would corrupt the search's copy of
+     * the game, so any move that isn't legal is replaced by a random legal one.
+     *
+     * @param player the gameplayer to delegate to, which must be safe to call from several threads at once
+     * @return a rollout policy that asks player for every move
+     */
+    public static RolloutPolicy fromGamePlayer(GamePlayer player) {
+        return new RolloutPolicy() {
+            @Override
+            public Game.Event getNextMove(Game game, Function<Game, Double> utility, Random r) {
+                Game.Event[] legalMoves = game.getLegalMoves();
+                Game.Event move = player.getNextMove(game, utility);
+                if (move != null) {
+                    for (Game.Event legalMove : legalMoves) {
+                        if (GamePlayerMCTS.sameMove(legalMove, move)) return legalMove;
+                    }
+                }
+                return legalMoves[r.nextInt(legalMoves.length)];
+            }
+        };
+    }
+}
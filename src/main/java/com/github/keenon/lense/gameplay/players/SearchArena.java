@@ -0,0 +1,508 @@
+package com.github.keenon.lense.gameplay.players;
+
+import com.github.keenon.lense.gameplay.Game;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Node storage for a single MCTS search. Rather than an object per node, with its own child list and boxed statistics,
+ * nodes are int indices into parallel primitive arrays: visit counts, utility sums, and first-child / next-sibling links.
+ *
+ * The arrays are allocated in fixed size chunks as the search grows, up to a hard cap on the number of nodes, so a
+ * search can never run the heap out of memory, and growing never has to copy (or lock) anything that other threads
+ * might be reading. Once the cap is reached, allocate() returns NONE and the search has to make do with the tree it has.
+ *
+ * An arena is meant to be recycled between moves: reset() forgets every node but keeps the chunks, so a long game
+ * allocates its search storage once, rather than once per move.
+ *
+ * Like the tree it replaces, everything here is safe to use from several search threads without locks, except for the
+ * transposition table, which is only touched when a node is created.
+ */
+public class SearchArena {
+    public static final int NONE = -1;
+    public static final int DEFAULT_MAX_NODES = 1 << 20;
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * The storage for CHUNK_SIZE consecutive nodes.
+     */
+    static class Chunk {
+        // Statistics. A node's statistics live at the index of the first node to reach its state, see stats[].
+        final AtomicIntegerArray visits = new AtomicIntegerArray(CHUNK_SIZE);
+        // Doubles, stored as their raw bits so that we can CAS them
+        final AtomicLongArray utilityBits = new AtomicLongArray(CHUNK_SIZE);
+
+        // Structure. Children form a singly linked list, which new children are CAS'd onto the front of.
+        final AtomicIntegerArray firstChild = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicIntegerArray childCount = new AtomicIntegerArray(CHUNK_SIZE);
+        // How far through the legal moves expansion of a gameplayer node has got
+        final AtomicIntegerArray expansionCursor = new AtomicIntegerArray(CHUNK_SIZE);
+        final int[] nextSibling = new int[CHUNK_SIZE];
+        final int[] stats = new int[CHUNK_SIZE];
+
+        // The event each node pushes, and what we need to rebuild it against another copy of the game
+        final Game.Event[] events = new Game.Event[CHUNK_SIZE];
+        final int[] reconstructionPointer = new int[CHUNK_SIZE];
+        // The heuristic score of the move each node makes, see MovePrior
+        final double[] prior = new double[CHUNK_SIZE];
+
+        // Each search thread's own copy of each node's event, indexed by [thread][node]. Each thread only ever reads and
+        // writes its own row, so that doesn't need any synchronization, but adding a row does.
+        volatile Game.Event[][] threadEvents = new Game.Event[0][];
+
+        Game.Event[] threadEventRow(int thread) {
+            Game.Event[][] rows = threadEvents;
+            if (thread < rows.length && rows[thread] != null) return rows[thread];
+            synchronized (this) {
+                rows = threadEvents;
+                if (thread >= rows.length) rows = Arrays.copyOf(rows, thread + 1);
+                if (rows[thread] == null) rows[thread] = new Game.Event[CHUNK_SIZE];
+                threadEvents = rows;
+                return rows[thread];
+            }
+        }
+
+        void clearThreadEvents() {
+            for (Game.Event[] row : threadEvents) {
+                if (row != null) Arrays.fill(row, null);
+            }
+        }
+    }
+
+    final int maxNodes;
+    final AtomicReferenceArray<Chunk> chunks;
+    final AtomicInteger allocated = new AtomicInteger(0);
+    // The range of utilities observed at the end of playouts, as raw double bits
+    final AtomicLong minUtilityBits = new AtomicLong(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+    final AtomicLong maxUtilityBits = new AtomicLong(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+    final NodeTable transpositions = new NodeTable();
+    // Children of gameplayer nodes, keyed by the parent and a descriptor of the move
+    final NodeTable childIndex = new NodeTable();
+
+    public SearchArena() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * @param maxNodes the most nodes this arena will ever hold
+     */
+    public SearchArena(int maxNodes) {
+        this.maxNodes = maxNodes;
+        chunks = new AtomicReferenceArray<>((maxNodes + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+    }
+
+    private Chunk chunk(int node) {
+        return chunks.get(node >>> CHUNK_BITS);
+    }
+
+    /**
+     * Creates a new node, with no children and its own (empty) statistics.
+     *
+     * @param event the event this node pushes, or null for the root
+     * @return the index of the new node, or NONE if the arena is full
+     */
+    public int allocate(Game.Event event) {
+        int node;
+        while (true) {
+            node = allocated.get();
+            if (node >= maxNodes) return NONE;
+            if (allocated.compareAndSet(node, node + 1)) break;
+        }
+
+        int c = node >>> CHUNK_BITS;
+        if (chunks.get(c) == null) chunks.compareAndSet(c, null, new Chunk());
+        Chunk chunk = chunks.get(c);
+        int i = node & CHUNK_MASK;
+
+        chunk.visits.set(i, 0);
+        chunk.utilityBits.set(i, Double.doubleToRawLongBits(0.0));
+        chunk.firstChild.set(i, NONE);
+        chunk.childCount.set(i, 0);
+        chunk.expansionCursor.set(i, 0);
+        chunk.nextSibling[i] = NONE;
+        chunk.stats[i] = node;
+        chunk.events[i] = event;
+        chunk.reconstructionPointer[i] = -1;
+        chunk.prior[i] = 0.0;
+        // Nobody can look at this node until it's published by addChild(), which happens after this
+        for (Game.Event[] row : chunk.threadEvents) {
+            if (row != null) row[i] = null;
+        }
+
+        return node;
+    }
+
+    /**
+     * Points a node at the shared statistics for its state, registering it as the owner if it's the first to get there.
+     * Must be called before the node is added to the tree.
+     *
+     * @param node the newly allocated node
+     * @param transpositionKey the key for the game state after the node's event
+     */
+    public void registerTransposition(int node, long transpositionKey) {
+        chunk(node).stats[node & CHUNK_MASK] = transpositions.putIfAbsent(transpositionKey, node);
+    }
+
+    /**
+     * Makes a node use another node's statistics. Must be called before the node is added to the tree.
+     */
+    public void shareStatistics(int node, int owner) {
+        chunk(node).stats[node & CHUNK_MASK] = owner;
+    }
+
+    /**
+     * @return the node whose slot holds this node's statistics
+     */
+    public int statistics(int node) {
+        return chunk(node).stats[node & CHUNK_MASK];
+    }
+
+    public int visits(int node) {
+        int s = statistics(node);
+        return chunk(s).visits.get(s & CHUNK_MASK);
+    }
+
+    public double observedUtility(int node) {
+        int s = statistics(node);
+        return Double.longBitsToDouble(chunk(s).utilityBits.get(s & CHUNK_MASK));
+    }
+
+    public double averageUtility(int node) {
+        return observedUtility(node) / visits(node);
+    }
+
+    private void addUtility(int node, double delta) {
+        int s = statistics(node);
+        AtomicLongArray utilityBits = chunk(s).utilityBits;
+        int i = s & CHUNK_MASK;
+        while (true) {
+            long bits = utilityBits.get(i);
+            long updated = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + delta);
+            if (utilityBits.compareAndSet(i, bits, updated)) return;
+        }
+    }
+
+    /**
+     * Counts a playout that's passing through on its way down, with a virtual loss until it comes back.
+     *
+     * @return the number of visits, counting this one
+     */
+    public int beginVisit(int node, double virtualLoss) {
+        int s = statistics(node);
+        int visits = chunk(s).visits.incrementAndGet(s & CHUNK_MASK);
+        addUtility(node, -virtualLoss);
+        return visits;
+    }
+
+    /**
+     * Swaps the virtual loss from beginVisit() for the utility the playout actually observed.
+     */
+    public void endVisit(int node, double utility, double virtualLoss) {
+        addUtility(node, utility + virtualLoss);
+    }
+
+    /**
+     * Records some number of whole visits at once.
+     */
+    public void observeUtility(int node, int visits, double utility) {
+        int s = statistics(node);
+        chunk(s).visits.addAndGet(s & CHUNK_MASK, visits);
+        addUtility(node, utility);
+    }
+
+    /**
+     * Widens the range of utilities we've seen playouts end with, if need be.
+     */
+    public void recordUtility(double utility) {
+        while (true) {
+            long bits = minUtilityBits.get();
+            if (utility >= Double.longBitsToDouble(bits)) break;
+            if (minUtilityBits.compareAndSet(bits, Double.doubleToRawLongBits(utility))) break;
+        }
+        while (true) {
+            long bits = maxUtilityBits.get();
+            if (utility <= Double.longBitsToDouble(bits)) break;
+            if (maxUtilityBits.compareAndSet(bits, Double.doubleToRawLongBits(utility))) break;
+        }
+    }
+
+    /**
+     * @return the lowest utility passed to recordUtility(), or positive infinity if there hasn't been one
+     */
+    public double getMinUtility() {
+        return Double.longBitsToDouble(minUtilityBits.get());
+    }
+
+    /**
+     * @return the highest utility passed to recordUtility(), or negative infinity if there hasn't been one
+     */
+    public double getMaxUtility() {
+        return Double.longBitsToDouble(maxUtilityBits.get());
+    }
+
+    public Game.Event event(int node) {
+        return chunk(node).events[node & CHUNK_MASK];
+    }
+
+    public double getPrior(int node) {
+        return chunk(node).prior[node & CHUNK_MASK];
+    }
+
+    /**
+     * Must be called before the node is added to the tree.
+     */
+    public void setPrior(int node, double prior) {
+        chunk(node).prior[node & CHUNK_MASK] = prior;
+    }
+
+    public int getReconstructionPointer(int node) {
+        return chunk(node).reconstructionPointer[node & CHUNK_MASK];
+    }
+
+    public void setReconstructionPointer(int node, int pointer) {
+        chunk(node).reconstructionPointer[node & CHUNK_MASK] = pointer;
+    }
+
+    /**
+     * @param thread the index of the search thread asking, which must be the only thread using that index
+     * @return that thread's copy of this node's event, or null if it hasn't made one yet
+     */
+    public Game.Event getThreadEvent(int node, int thread) {
+        Game.Event[][] rows = chunk(node).threadEvents;
+        if (thread >= rows.length || rows[thread] == null) return null;
+        return rows[thread][node & CHUNK_MASK];
+    }
+
+    /**
+     * @param thread the index of the search thread asking, which must be the only thread using that index
+     * @param e that thread's copy of this node's event
+     */
+    public void setThreadEvent(int node, int thread, Game.Event e) {
+        chunk(node).threadEventRow(thread)[node & CHUNK_MASK] = e;
+    }
+
+    /**
+     * @return the most recently added child of this node, or NONE
+     */
+    public int firstChild(int node) {
+        return chunk(node).firstChild.get(node & CHUNK_MASK);
+    }
+
+    /**
+     * @return the next oldest sibling of this node, or NONE
+     */
+    public int nextSibling(int node) {
+        return chunk(node).nextSibling[node & CHUNK_MASK];
+    }
+
+    public int childCount(int node) {
+        return chunk(node).childCount.get(node & CHUNK_MASK);
+    }
+
+    /**
+     * Adds a child, as long as nobody else has added a child since we looked.
+     *
+     * @param parent the node to add to
+     * @param expectedFirst the result of firstChild(parent) when we decided to expand
+     * @param child a freshly allocated node
+     * @return whether the child was added
+     */
+    public boolean addChild(int parent, int expectedFirst, int child) {
+        chunk(child).nextSibling[child & CHUNK_MASK] = expectedFirst;
+        Chunk p = chunk(parent);
+        if (!p.firstChild.compareAndSet(parent & CHUNK_MASK, expectedFirst, child)) return false;
+        p.childCount.incrementAndGet(parent & CHUNK_MASK);
+        return true;
+    }
+
+    private static long childKey(int parent, int moveDescriptor) {
+        return ((long)parent << 32) | (moveDescriptor & 0xffffffffL);
+    }
+
+    /**
+     * @param moveDescriptor a compact description of a move, see GamePlayerMCTS.moveDescriptor()
+     * @return the child registered for that move under this parent, or NONE. Since descriptors can collide, the caller
+     * has to check that the child really is for the move it asked about.
+     */
+    public int findChild(int parent, int moveDescriptor) {
+        return childIndex.get(childKey(parent, moveDescriptor));
+    }
+
+    /**
+     * Registers a child under a move descriptor, unless something was registered under it first. Must be called before
+     * the child is added to the tree.
+     *
+     * @return child if it was registered, otherwise whatever was registered first
+     */
+    public int registerChild(int parent, int moveDescriptor, int child) {
+        return childIndex.putIfAbsent(childKey(parent, moveDescriptor), child);
+    }
+
+    public int getExpansionCursor(int node) {
+        return chunk(node).expansionCursor.get(node & CHUNK_MASK);
+    }
+
+    public void setExpansionCursor(int node, int cursor) {
+        chunk(node).expansionCursor.set(node & CHUNK_MASK, cursor);
+    }
+
+    /**
+     * @return the number of nodes allocated so far
+     */
+    public int size() {
+        return Math.min(allocated.get(), maxNodes);
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int transpositionCount() {
+        return transpositions.size();
+    }
+
+    /**
+     * Drops every thread's copy of every event, so that holding on to the arena doesn't hold on to the games that were
+     * searched with it. The nodes still know how to rebuild their events for any game that reaches them again. Nobody may
+     * be using the arena while this runs.
+     */
+    public void forgetThreadEvents() {
+        int used = size();
+        for (int c = 0; c < chunks.length() && (c << CHUNK_BITS) < used; c++) {
+            chunks.get(c).clearThreadEvents();
+        }
+    }
+
+    /**
+     * Forgets every node, keeping the storage around for the next search. Nobody may be using the arena while this runs.
+     */
+    public void reset() {
+        int used = size();
+        for (int c = 0; c < chunks.length() && (c << CHUNK_BITS) < used; c++) {
+            // Let go of events (and through them, games) we won't be looking at again
+            Arrays.fill(chunks.get(c).events, null);
+            chunks.get(c).clearThreadEvents();
+        }
+        allocated.set(0);
+        transpositions.clear();
+        childIndex.clear();
+        minUtilityBits.set(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+        maxUtilityBits.set(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * A map from long keys to nodes, used for the transposition table (from state to the node that owns the statistics
+     * for that state) and the child index. This is open addressed, over primitive arrays, and split into stripes with
+     * their own locks so that threads expanding different parts of the tree rarely wait on each other.
+     */
+    static class NodeTable {
+        static final int STRIPE_BITS = 4;
+
+        static class Stripe {
+            // Owners are stored plus one, so that 0 can mean empty
+            long[] keys = new long[64];
+            int[] owners = new int[64];
+            int size = 0;
+
+            int get(long key, long hash) {
+                int mask = keys.length - 1;
+                int i = (int)hash & mask;
+                while (owners[i] != 0) {
+                    if (keys[i] == key) return owners[i] - 1;
+                    i = (i + 1) & mask;
+                }
+                return NONE;
+            }
+
+            int putIfAbsent(long key, int owner, long hash) {
+                int mask = keys.length - 1;
+                int i = (int)hash & mask;
+                while (owners[i] != 0) {
+                    if (keys[i] == key) return owners[i] - 1;
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                owners[i] = owner + 1;
+                size++;
+                if (size * 2 > keys.length) grow();
+                return owner;
+            }
+
+            void grow() {
+                long[] oldKeys = keys;
+                int[] oldOwners = owners;
+                keys = new long[oldKeys.length * 2];
+                owners = new int[oldOwners.length * 2];
+                int mask = keys.length - 1;
+                for (int j = 0; j < oldKeys.length; j++) {
+                    if (oldOwners[j] == 0) continue;
+                    int i = (int)mix(oldKeys[j]) & mask;
+                    while (owners[i] != 0) i = (i + 1) & mask;
+                    keys[i] = oldKeys[j];
+                    owners[i] = oldOwners[j];
+                }
+            }
+        }
+
+        final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+        NodeTable() {
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+        }
+
+        static long mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 32);
+        }
+
+        /**
+         * @return the node registered for this key, or NONE
+         */
+        int get(long key) {
+            long hash = mix(key);
+            Stripe stripe = stripes[(int)(hash >>> (64 - STRIPE_BITS))];
+            synchronized (stripe) {
+                return stripe.get(key, hash);
+            }
+        }
+
+        /**
+         * @return the owner already registered for this key, or owner if there wasn't one (in which case it now is)
+         */
+        int putIfAbsent(long key, int owner) {
+            long hash = mix(key);
+            Stripe stripe = stripes[(int)(hash >>> (64 - STRIPE_BITS))];
+            synchronized (stripe) {
+                return stripe.putIfAbsent(key, owner, hash);
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size;
+                }
+            }
+            return size;
+        }
+
+        void clear() {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    Arrays.fill(stripe.keys, 0);
+                    Arrays.fill(stripe.owners, 0);
+                    stripe.size = 0;
+                }
+            }
+        }
+    }
+}
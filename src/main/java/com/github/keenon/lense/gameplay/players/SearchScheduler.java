@@ -0,0 +1,142 @@
+package com.github.keenon.lense.gameplay.players;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the worker tasks for tree searches, and decides how many workers each search gets.
+ *
+ * All searches share a single work-stealing pool, so when lots of games are being played at once (and lots of searches
+ * are running at once) a pool thread that finishes its own search's work early picks up another search's work, rather
+ * than sitting idle. The number of tasks a single move is split into is decided by a ParallelismPolicy, based on the
+ * size of the pool and the number of searches currently running, so that a lone game gets the whole machine and fifty
+ * games split it fairly, without anyone oversubscribing.
+ */
+public class SearchScheduler {
+    /**
+     * Decides how many parallel tasks a single move's search should be split into.
+     */
+    public interface ParallelismPolicy {
+        /**
+         * @param parallelism the number of threads in the shared pool
+         * @param activeSearches the number of searches currently running, including the one asking
+         * @return the number of tasks to split this search into, which must be at least 1
+         */
+        int tasksPerMove(int parallelism, int activeSearches);
+    }
+
+    /**
+     * Split the pool evenly between all the searches currently running, rounding up so no threads are left idle.
+     */
+    public static final ParallelismPolicy FAIR_SHARE = (parallelism, activeSearches) ->
+            (parallelism + activeSearches - 1) / activeSearches;
+
+    /**
+     * Every search gets as many tasks as the pool has threads, and work stealing sorts out the rest.
+     */
+    public static final ParallelismPolicy FULL_POOL = (parallelism, activeSearches) -> parallelism;
+
+    /**
+     * @param tasks the number of tasks every search gets, regardless of load
+     * @return a policy that always splits searches into the same number of tasks
+     */
+    public static ParallelismPolicy fixed(int tasks) {
+        return (parallelism, activeSearches) -> tasks;
+    }
+
+    private static SearchScheduler shared = null;
+
+    /**
+     * @return a scheduler with one thread per core, shared by every GamePlayerMCTS that isn't given its own
+     */
+    public static synchronized SearchScheduler getShared() {
+        if (shared == null) {
+            shared = new SearchScheduler(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    final ForkJoinPool pool;
+    // Set instead of pool by schedulers that wrap an old-style executor
+    final ThreadPoolExecutor executor;
+    final AtomicInteger activeSearches = new AtomicInteger(0);
+    public ParallelismPolicy policy = FAIR_SHARE;
+
+    /**
+     * @param parallelism the number of threads to search with. If other work (like retraining) shares the machine, make
+     *                    this smaller than the number of cores.
+     */
+    public SearchScheduler(int parallelism) {
+        this(new ForkJoinPool(parallelism));
+    }
+
+    public SearchScheduler(ForkJoinPool pool) {
+        this.pool = pool;
+        this.executor = null;
+    }
+
+    /**
+     * Runs searches on an existing executor, for callers that managed their own threads before searches were scheduled.
+     * The executor doesn't steal work, so searches that share it don't balance as well as they would on a pool.
+     *
+     * @param executor the executor to run search tasks on, whose maximum pool size is taken as the parallelism
+     */
+    public SearchScheduler(ThreadPoolExecutor executor) {
+        this.pool = null;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the number of threads in the underlying pool
+     */
+    public int getParallelism() {
+        if (executor != null) return executor.getMaximumPoolSize();
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the number of searches that have called beginSearch() but not endSearch()
+     */
+    public int getActiveSearches() {
+        return activeSearches.get();
+    }
+
+    /**
+     * Registers a new search, which must be matched by a call to endSearch() when it's done.
+     *
+     * @return the number of tasks that search should split itself into
+     */
+    public int beginSearch() {
+        int active = activeSearches.incrementAndGet();
+        return Math.max(1, policy.tasksPerMove(getParallelism(), active));
+    }
+
+    public void endSearch() {
+        activeSearches.decrementAndGet();
+    }
+
+    /**
+     * @param task a piece of a search
+     * @return a handle that can be joined on once the task is done
+     */
+    public <T> ForkJoinTask<T> submit(Callable<T> task) {
+        if (executor != null) {
+            // The task records its own result or exception, for whoever joins on it
+            ForkJoinTask<T> adapted = ForkJoinTask.adapt(task);
+            executor.execute(adapted::quietlyInvoke);
+            return adapted;
+        }
+        return pool.submit(task);
+    }
+
+    /**
+     * Shuts down the underlying pool. Searches submitted after this will fail.
+     */
+    public void shutdown() {
+        if (executor != null) executor.shutdown();
+        else pool.shutdown();
+    }
+}
@@ -27,7 +27,8 @@ public class UncertaintyUtility implements Function<Game, Double> {
         }
         double cost = uncertaintySum;
 
-        for (Game.Event e : game.stack) {
+        for (int i = 0; i < game.stack.size(); i++) {
+            Game.Event e = game.stack.get(i);
             if (e instanceof Game.HumanJobPosting) {
                 cost += humanRecruitmentCost;
             }
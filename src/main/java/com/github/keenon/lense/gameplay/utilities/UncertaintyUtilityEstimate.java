@@ -0,0 +1,48 @@
+package com.github.keenon.lense.gameplay.utilities;
+
+import com.github.keenon.lense.gameplay.Game;
+
+import java.util.function.Function;
+
+/**
+ * Estimates the utility of a game that hasn't finished yet, for scoring playouts that were cut off before the end of the
+ * game, on the same scale as the utility function that scores the ones that did finish.
+ *
+ * This is the utility the game would get if we waited for the queries that are in flight to come back, and then turned
+ * it in without learning anything from them: the utility function applied with the clock moved forward by the expected
+ * remaining delay of the slowest in-flight query. Launched queries are already paid for by the utility, so that only
+ * adds the waiting, and only for utilities that care about time. We don't try to guess how much the responses would
+ * reduce uncertainty.
+ */
+public class UncertaintyUtilityEstimate implements Function<Game, Double> {
+    final Function<Game, Double> utility;
+
+    public UncertaintyUtilityEstimate() {
+        this(new UncertaintyUtility());
+    }
+
+    /**
+     * @param utility the utility function to estimate
+     */
+    public UncertaintyUtilityEstimate(Function<Game, Double> utility) {
+        this.utility = utility;
+    }
+
+    @Override
+    public Double apply(Game game) {
+        double remainingWait = 0.0;
+        for (Game.QueryLaunch ql : game.inFlightRequests) {
+            double elapsed = game.timeSinceGameStart - ql.timeSinceGameStart;
+            remainingWait = Math.max(remainingWait, ql.human.delayModel.getMean() - elapsed);
+        }
+
+        long wait = (long)Math.ceil(remainingWait);
+        game.timeSinceGameStart += wait;
+        try {
+            return utility.apply(game);
+        }
+        finally {
+            game.timeSinceGameStart -= wait;
+        }
+    }
+}
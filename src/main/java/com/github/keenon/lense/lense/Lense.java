@@ -39,6 +39,9 @@ public class Lense {
 
     boolean recordQueries;
 
+    // If this is set, games played by getMAP() don't offer queries on variables it rules out, see Game.ActionFilter
+    public Game.ActionFilter actionFilter = null;
+
     public Lense(HumanSource humans) {
         this(humans, new GamePlayerMCTS(), new UncertaintyUtilityWithoutTime(), new ConcatVector(0));
     }
@@ -60,6 +63,7 @@ public class Lense {
      */
     public int[] getMAP(GraphicalModel model, Object moveMonitor) {
         Game game = new Game(model, weights, humans.getSimulatedProvider(), humans.getAvailableHumans(model));
+        game.actionFilter = actionFilter;
         return playGame(game, moveMonitor).getMAP();
     }
 
@@ -127,6 +131,12 @@ public class Lense {
 
             else if (event instanceof Game.Wait) {
                 log.info("Wait");
+                // Rather than sit idle until the humans get back to us, let the gameplayer get a head start on its next move
+                gamePlayer.ponder(game, utility, () -> {
+                    synchronized (externalEvents) {
+                        return !externalEvents.isEmpty();
+                    }
+                });
                 try {
                     synchronized (externalEvents) {
                         while (externalEvents.isEmpty()) {
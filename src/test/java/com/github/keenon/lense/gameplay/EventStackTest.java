@@ -0,0 +1,153 @@
+package com.github.keenon.lense.gameplay;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks EventStack against the java.util.Stack it replaced, over long random sequences of the operations games and
+ * searches actually use, plus the List operations that other code reads it through.
+ */
+public class EventStackTest {
+    @Test
+    public void testMatchesJavaStack() throws Exception {
+        Random r = new Random(42);
+
+        // Start small, so the stack has to grow a few times along the way
+        EventStack stack = new EventStack(2);
+        Stack<Game.Event> expected = new Stack<>();
+
+        for (int i = 0; i < 20000; i++) {
+            int op = r.nextInt(10);
+            if (op < 5) {
+                // Push more than we pop, so the stack drifts deep as well as emptying out
+                Game.Event e = new Game.Wait();
+                e.timeSinceGameStart = r.nextInt(10);
+                assertSame(expected.push(e), stack.push(e));
+            }
+            else if (op < 8) {
+                if (expected.empty()) {
+                    assertPopAndPeekFail(stack);
+                }
+                else {
+                    assertSame(expected.peek(), stack.peek());
+                    assertSame(expected.pop(), stack.pop());
+                }
+            }
+            else if (op < 9 && !expected.empty()) {
+                // Look things up by reference, which equals() can't do since events compare by contents
+                int index = r.nextInt(expected.size());
+                Game.Event e = expected.get(index);
+                int identical = -1;
+                for (int j = expected.size() - 1; j >= 0; j--) {
+                    if (expected.get(j) == e) {
+                        identical = j;
+                        break;
+                    }
+                }
+                assertEquals(identical, stack.indexOfIdentical(e));
+                assertEquals(-1, stack.indexOfIdentical(new Game.Wait()));
+            }
+            else if (r.nextInt(50) == 0) {
+                expected.clear();
+                stack.clear();
+            }
+
+            assertEquals(expected.empty(), stack.empty());
+            assertEquals(expected.size(), stack.size());
+            if (i % 100 == 0) assertStacksMatch(expected, stack);
+        }
+        assertStacksMatch(expected, stack);
+
+        // Popping everything off comes out in the same order
+
+        while (!expected.empty()) assertSame(expected.pop(), stack.pop());
+        assertTrue(stack.empty());
+        assertPopAndPeekFail(stack);
+    }
+
+    @Test
+    public void testListOperationsMatchJavaStack() throws Exception {
+        Random r = new Random(42);
+        EventStack stack = new EventStack(1);
+        Stack<Game.Event> expected = new Stack<>();
+        for (int i = 0; i < 50; i++) {
+            Game.Event e = new Game.Wait();
+            expected.push(e);
+            stack.push(e);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            int op = r.nextInt(3);
+            if (op == 0) {
+                int index = r.nextInt(expected.size() + 1);
+                Game.Event e = new Game.Wait();
+                expected.add(index, e);
+                stack.add(index, e);
+            }
+            else if (op == 1 && !expected.isEmpty()) {
+                int index = r.nextInt(expected.size());
+                assertSame(expected.remove(index), stack.remove(index));
+            }
+            else if (!expected.isEmpty()) {
+                int index = r.nextInt(expected.size());
+                Game.Event e = new Game.Wait();
+                assertSame(expected.set(index, e), stack.set(index, e));
+            }
+            assertStacksMatch(expected, stack);
+        }
+
+        // Out of range indices fail the same way java.util.Stack's do
+
+        for (int index : new int[]{-1, stack.size()}) {
+            try {
+                stack.get(index);
+                fail("get("+index+") should have failed");
+            }
+            catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+
+        // Changing the stack under an iterator fails fast, like any List
+
+        Iterator<Game.Event> iterator = stack.iterator();
+        stack.push(new Game.Wait());
+        try {
+            iterator.next();
+            fail("The iterator should have noticed the push");
+        }
+        catch (ConcurrentModificationException e) {
+            // expected
+        }
+    }
+
+    private static void assertStacksMatch(Stack<Game.Event> expected, EventStack stack) {
+        assertEquals(expected.size(), stack.size());
+        for (int i = 0; i < expected.size(); i++) assertSame(expected.get(i), stack.get(i));
+        assertArrayEquals(expected.toArray(), stack.toArray());
+        assertEquals(expected, stack);
+        int i = 0;
+        for (Game.Event e : stack) assertSame(expected.get(i++), e);
+        assertEquals(expected.size(), i);
+    }
+
+    private static void assertPopAndPeekFail(EventStack stack) {
+        try {
+            stack.pop();
+            fail("pop() on an empty stack should have failed");
+        }
+        catch (EmptyStackException e) {
+            // expected
+        }
+        try {
+            stack.peek();
+            fail("peek() on an empty stack should have failed");
+        }
+        catch (EmptyStackException e) {
+            // expected
+        }
+    }
+}
@@ -16,8 +16,11 @@ import com.github.keenon.lense.gameplay.players.GamePlayer;
 import com.github.keenon.lense.gameplay.players.GamePlayerRandom;
 import org.junit.contrib.theories.Theories;
 import org.junit.contrib.theories.Theory;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -65,6 +68,145 @@ public class GameTest {
         }
     }
 
+    @Theory
+    public void testModelOverlay(@ForAll(sampleSize = 20) @From(GraphicalModelGenerator.class) GraphicalModel model) throws Exception {
+        GraphicalModel original = model.cloneModel();
+        GraphicalModelOverlay overlay = GraphicalModelOverlay.over(model);
+        assertTrue(overlay.valueEquals(model, 1.0e-7));
+
+        // Change the overlay the way a game would
+
+        GraphicalModel.Factor f = model.factors.iterator().next();
+        int newVariable = Math.max(model.variableMetaData.size(), model.getVariableSizes().length) + 3;
+        int[] neighbors = new int[f.neigborIndices.length];
+        for (int i = 0; i < neighbors.length; i++) neighbors[i] = newVariable + i;
+        GraphicalModel.Factor added = overlay.addFactor(f.featuresTable, neighbors);
+        overlay.getVariableMetaDataByReference(newVariable).put("observed", "1");
+        overlay.getVariableMetaDataByReference(0).put("annotation", "written");
+        overlay.factors.remove(f);
+
+        assertTrue(overlay.factors.contains(added));
+        assertFalse(overlay.factors.contains(f));
+        assertEquals(model.factors.size(), overlay.factors.size());
+        assertEquals("written", overlay.getVariableMetaDataByReference(0).get("annotation"));
+
+        // An overlay of the overlay starts with its changes, and the base never sees any of them
+
+        GraphicalModelOverlay copy = GraphicalModelOverlay.over(overlay);
+        assertTrue(copy.valueEquals(overlay, 1.0e-7));
+        assertTrue(model.valueEquals(original, 1.0e-7));
+        assertNull(model.getVariableMetaDataByReference(0).get("annotation"));
+
+        // Undoing the changes gets back to the base
+
+        overlay.factors.add(f);
+        overlay.factors.remove(added);
+        overlay.variableMetaData.remove(newVariable);
+        overlay.getVariableMetaDataByReference(0).remove("annotation");
+        assertEquals(model.factors.size(), overlay.factors.size());
+        assertTrue(copy.factors.contains(added));
+    }
+
+    @Theory
+    public void testModelChangedRefreshesClones(@ForAll(sampleSize = 5) @From(GameGenerator.class) Game game) throws Exception {
+        ClonePool pool = new ClonePool();
+        Game pooled = pool.getClones(game, 1)[0];
+        Game clone = game.getClones(1)[0];
+
+        // Clones of clones share the same base, rather than stacking overlays
+
+        GraphicalModel base = ((GraphicalModelOverlay)clone.model).getBase();
+        assertSame(base, ((GraphicalModelOverlay)clone.getClones(1)[0].model).getBase());
+
+        // Until we say the model changed, clones keep sharing the copy they already have
+
+        game.model.getVariableMetaDataByReference(0).put("TEST", "changed");
+        assertSame(base, ((GraphicalModelOverlay)game.getClones(1)[0].model).getBase());
+        assertSame(pooled, pool.getClones(game, 1)[0]);
+
+        // After that, new clones and pooled clones alike see the change
+
+        game.modelChanged();
+        Game fresh = game.getClones(1)[0];
+        assertNotSame(base, ((GraphicalModelOverlay)fresh.model).getBase());
+        assertEquals("changed", fresh.model.getVariableMetaDataByReference(0).get("TEST"));
+        Game repooled = pool.getClones(game, 1)[0];
+        assertNotSame(pooled, repooled);
+        assertEquals("changed", repooled.model.getVariableMetaDataByReference(0).get("TEST"));
+    }
+
+    @Theory
+    public void testClonePool(@ForAll(sampleSize = 10) @From(GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayer gp = new GamePlayerRandom(r);
+        ClonePool pool = new ClonePool();
+
+        for (int i = 0; i < 3; i++) {
+            game.resetEvents();
+            while (!game.isTerminated()) {
+                // Ask for varying numbers of clones, so some get built fresh and some get brought up to date
+                Game[] copies = pool.getClones(game, 1 + game.stack.size() % 3);
+                for (Game copy : copies) {
+                    assertTrue(copy != game);
+                    assertEquals(game.stack.size(), copy.stack.size());
+                    for (int j = 0; j < copy.stack.size(); j++) {
+                        assertTrue(copy.stack.get(j) != game.stack.get(j));
+                        assertTrue(copy.stack.get(j).equals(game.stack.get(j)));
+                    }
+                    assertEquals(game.getStateHash(), copy.getStateHash());
+                    if (game.isGameplayerTurn()) assertEquals(game.getLegalMoves().length, copy.getLegalMoves().length);
+                }
+
+                Game.Event nextMove;
+                if (game.isGameplayerTurn()) {
+                    nextMove = gp.getNextMove(game, null);
+                }
+                else {
+                    nextMove = game.sampleNextEvent(r);
+                }
+                nextMove.push(game);
+            }
+        }
+    }
+
+    @Theory
+    public void testWriteToStream(@ForAll(sampleSize = 10) @From(GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayer gp = new GamePlayerRandom(r);
+
+        while (!game.isTerminated()) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            game.writeToStream(byteArrayOutputStream);
+            byteArrayOutputStream.close();
+            Game recovered = Game.readFromStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+
+            assertTrue(recovered.model.valueEquals(game.model, 1.0e-7));
+            assertEquals(game.stack.size(), recovered.stack.size());
+            for (int j = 0; j < game.stack.size(); j++) {
+                assertEquals(game.stack.get(j).getClass(), recovered.stack.get(j).getClass());
+                assertEquals(game.stack.get(j).timeSinceGameStart, recovered.stack.get(j).timeSinceGameStart);
+            }
+            assertEquals(game.getStateHash(), recovered.getStateHash());
+            if (game.isGameplayerTurn()) assertEquals(game.getLegalMoves().length, recovered.getLegalMoves().length);
+
+            double[][] marginals = game.getMarginals();
+            double[][] recoveredMarginals = recovered.getMarginals();
+            for (int i = 0; i < marginals.length; i++) {
+                if (marginals[i] == null) continue;
+                assertArrayEquals(marginals[i], recoveredMarginals[i], 1.0e-7);
+            }
+
+            Game.Event nextMove;
+            if (game.isGameplayerTurn()) {
+                nextMove = gp.getNextMove(game, null);
+            }
+            else {
+                nextMove = game.sampleNextEvent(r);
+            }
+            nextMove.push(game);
+        }
+    }
+
     @Theory
     public void testMultiquery(@ForAll(sampleSize = 10) @From(GameGenerator.class) Game game,
                                @ForAll(sampleSize = 5) @InRange(minInt = 1, maxInt = 10) int numQueries) throws Exception {
@@ -255,6 +397,389 @@ public class GameTest {
         game.getMarginals();
     }
 
+    @Theory
+    public void testIncrementalMarginals(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayer gp = new GamePlayerRandom(r);
+
+        for (int i = 0; i < 5; i++) {
+            while (!game.isTerminated()) {
+                assertMarginalsMatchCliqueTree(game);
+
+                Game.Event nextMove;
+                if (game.isGameplayerTurn()) {
+                    nextMove = gp.getNextMove(game, null);
+                }
+                else {
+                    nextMove = game.sampleNextEvent(r);
+                }
+                nextMove.push(game);
+            }
+
+            // Pop back down part of the way, checking the frames we return to
+
+            int target = r.nextInt(game.stack.size() + 1);
+            while (game.stack.size() > target) {
+                game.stack.peek().pop(game);
+                assertMarginalsMatchCliqueTree(game);
+            }
+        }
+    }
+
+    @Test
+    public void testObservationSetIgnoresOrder() throws Exception {
+        MarginalCache cache = new MarginalCache();
+
+        // Several humans who all give the same answer about the same variable, so only their error models tell the
+        // observations apart
+
+        List<Game.QueryResponse> observations = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            ConcatVectorTable[] errorModel = new ConcatVectorTable[]{ new ConcatVectorTable(new int[]{2, 2}) };
+            Game.HumanArrival human = new Game.HumanArrival(errorModel, null, null, new HashMap<>());
+            observations.add(new Game.QueryResponse(new Game.QueryLaunch(0, human), i % 2));
+        }
+
+        MarginalCache.ObservationSet key = cache.getKey(observations);
+        Random r = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            List<Game.QueryResponse> shuffled = new ArrayList<>(observations);
+            Collections.shuffle(shuffled, r);
+            MarginalCache.ObservationSet shuffledKey = cache.getKey(shuffled);
+            assertEquals(key, shuffledKey);
+            assertEquals(key.hashCode(), shuffledKey.hashCode());
+        }
+
+        // A different human giving the same answer is a different set of observations
+
+        List<Game.QueryResponse> substituted = new ArrayList<>(observations);
+        Game.HumanArrival stranger = new Game.HumanArrival(new ConcatVectorTable[]{ new ConcatVectorTable(new int[]{2, 2}) }, null, null, new HashMap<>());
+        substituted.set(0, new Game.QueryResponse(new Game.QueryLaunch(0, stranger), 0));
+        assertFalse(key.equals(cache.getKey(substituted)));
+    }
+
+    @Test
+    public void testIncrementalMarginalsPropagateThroughTrees() throws Exception {
+        Random r = new Random(42);
+
+        // A linear chain of 5 variables, with a three-way factor hanging off of the middle, which is well beyond what
+        // the closed form for isolated variables can handle, but still has no cycles
+
+        GraphicalModel model = new GraphicalModel();
+        for (int i = 0; i < 7; i++) {
+            addRandomFactor(model, new int[]{i}, new int[]{3}, r);
+        }
+        for (int i = 0; i < 4; i++) {
+            addRandomFactor(model, new int[]{i, i + 1}, new int[]{3, 3}, r);
+        }
+        addRandomFactor(model, new int[]{2, 5, 6}, new int[]{3, 3, 3}, r);
+
+        ConcatVector weights = new ConcatVector(CONCAT_VEC_COMPONENTS);
+        for (int i = 0; i < CONCAT_VEC_COMPONENTS; i++) {
+            weights.setDenseComponent(i, new double[]{r.nextDouble(), r.nextDouble(), r.nextDouble()});
+        }
+        ConcatVector agreement = new ConcatVector(CONCAT_VEC_COMPONENTS);
+        agreement.setSparseComponent(0, 0, 2.0);
+        Map<Integer, ConcatVector> disagreement = new HashMap<>();
+        ConcatVector disagree = new ConcatVector(CONCAT_VEC_COMPONENTS);
+        disagree.setSparseComponent(0, 1, 0.5);
+        disagreement.put(3, disagree);
+
+        Game.ArtificialHumanProvider humanSampler = new Game.ArtificialHumanAgreementDisagrementProvider(agreement, disagreement, new DiscreteSetDistribution(new long[]{ 2000L }));
+        Game game = new Game(model, weights, humanSampler, 3);
+        assertTrue(game.inference.forest);
+
+        GamePlayer gp = new GamePlayerRandom(r);
+        int responses = 0;
+        for (int i = 0; i < 5; i++) {
+            while (!game.isTerminated()) {
+                assertMarginalsMatchCliqueTree(game);
+
+                Game.Event nextMove;
+                if (game.isGameplayerTurn()) {
+                    nextMove = gp.getNextMove(game, null);
+                }
+                else {
+                    nextMove = game.sampleNextEvent(r);
+                }
+                if (nextMove instanceof Game.QueryResponse) responses++;
+                nextMove.push(game);
+            }
+
+            int target = r.nextInt(game.stack.size() + 1);
+            while (game.stack.size() > target) {
+                game.stack.peek().pop(game);
+                assertMarginalsMatchCliqueTree(game);
+            }
+        }
+
+        assertTrue(responses > 0);
+        assertEquals(0, game.inference.fullInferences);
+    }
+
+    private static void addRandomFactor(GraphicalModel model, int[] neighbors, int[] dimensions, Random r) {
+        GraphicalModel.Factor factor = model.addFactor(neighbors, dimensions, (assignment) -> {
+            ConcatVector features = new ConcatVector(CONCAT_VEC_COMPONENTS);
+            for (int j = 0; j < CONCAT_VEC_COMPONENTS; j++) {
+                features.setSparseComponent(j, r.nextInt(CONCAT_VEC_COMPONENT_LENGTH), r.nextDouble());
+            }
+            return features;
+        });
+        for (int[] assignment : factor.featuresTable) {
+            ConcatVector cooked = factor.featuresTable.getAssignmentValue(assignment).get();
+            factor.featuresTable.setAssignmentValue(assignment, () -> cooked);
+        }
+    }
+
+    @Theory
+    public void testMarginalCacheIsOrderIndependent(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        int variable = game.availableAnnotators.keySet().iterator().next();
+
+        // Only models with cycles send connected variables through the cache, and the generated models have none, so
+        // treat them as if they did
+
+        game.inference.forest = false;
+
+        Game.QueryLaunch[] queries = new Game.QueryLaunch[2];
+        for (int i = 0; i < queries.length; i++) {
+            Game.HumanJobPosting jp = new Game.HumanJobPosting();
+            jp.push(game);
+            Game.HumanArrival human = game.humanProvider.getArtificialHuman(game, jp);
+            human.push(game);
+            queries[i] = new Game.QueryLaunch(variable, human);
+            queries[i].push(game);
+        }
+
+        new Game.QueryResponse(queries[0], 0).push(game);
+        new Game.QueryResponse(queries[1], game.variableSizes[variable] - 1).push(game);
+        double[][] forwards = game.getMarginals();
+        game.stack.peek().pop(game);
+        game.stack.peek().pop(game);
+
+        new Game.QueryResponse(queries[1], game.variableSizes[variable] - 1).push(game);
+        new Game.QueryResponse(queries[0], 0).push(game);
+        double[][] backwards = game.getMarginals();
+
+        // Connected variables go through the cache, so the second order shouldn't have paid for inference at all
+
+        if (!game.inference.isolated[variable]) {
+            assertTrue(forwards == backwards);
+        }
+        for (int i = 0; i < forwards.length; i++) {
+            if (forwards[i] == null) continue;
+            for (int j = 0; j < forwards[i].length; j++) {
+                assertEquals(forwards[i][j], backwards[i][j], 1.0e-7);
+            }
+        }
+    }
+
+    @Theory
+    public void testStateHashIsOrderIndependent(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        long emptyHash = game.getStateHash();
+
+        Game.HumanJobPosting jp = new Game.HumanJobPosting();
+        jp.push(game);
+        Game.HumanArrival human = game.humanProvider.getArtificialHuman(game, jp);
+        human.push(game);
+
+        List<Integer> vars = new ArrayList<>();
+        vars.addAll(game.availableAnnotators.keySet());
+
+        // Launch on every variable, then pop back off, then launch on every variable in reverse
+
+        for (int i : vars) new Game.QueryLaunch(i, human).push(game);
+        long forwardsHash = game.getStateHash();
+        for (int i : vars) game.stack.peek().pop(game);
+
+        Collections.reverse(vars);
+        for (int i : vars) new Game.QueryLaunch(i, human).push(game);
+        assertEquals(forwardsHash, game.getStateHash());
+
+        // Different states should hash differently
+
+        game.stack.peek().pop(game);
+        assertFalse(forwardsHash == game.getStateHash());
+
+        game.resetEvents();
+        assertEquals(emptyHash, game.getStateHash());
+    }
+
+    @Theory
+    public void testOrphanedRequestsFailOldestFirst(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+
+        Game.HumanJobPosting jp = new Game.HumanJobPosting();
+        jp.push(game);
+        Game.HumanArrival human = game.humanProvider.getArtificialHuman(game, jp);
+        human.push(game);
+
+        List<Game.QueryLaunch> launches = new ArrayList<>();
+        for (int i : game.availableAnnotators.keySet()) {
+            Game.QueryLaunch ql = new Game.QueryLaunch(i, human);
+            ql.push(game);
+            launches.add(ql);
+        }
+        if (launches.isEmpty()) return;
+
+        new Game.HumanExit(human).push(game);
+        new Game.Wait().push(game);
+
+        // Every query the human had out has to fail, in the order they were launched
+
+        for (Game.QueryLaunch ql : launches) {
+            assertTrue(game.isNextSampleEventDeterministic());
+            Game.Event e = game.sampleNextEvent(r);
+            assertTrue(e instanceof Game.QueryFailure);
+            assertSame(ql, ((Game.QueryFailure)e).request);
+            e.push(game);
+            new Game.Wait().push(game);
+        }
+        assertFalse(game.isNextSampleEventDeterministic());
+
+        game.resetEvents();
+        assertFalse(game.isNextSampleEventDeterministic());
+    }
+
+    @Theory
+    public void testAnnotatorIndex(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        Game.HumanArrival[] humans = new Game.HumanArrival[2];
+        for (int h = 0; h < humans.length; h++) {
+            Game.HumanJobPosting jp = new Game.HumanJobPosting();
+            jp.push(game);
+            humans[h] = game.humanProvider.getArtificialHuman(game, jp);
+            humans[h].push(game);
+        }
+        assertAnnotatorIndexConsistent(game);
+
+        List<Game.QueryLaunch> launches = new ArrayList<>();
+        for (int i : game.annotators.getVariables()) {
+            Game.QueryLaunch ql = new Game.QueryLaunch(i, humans[launches.size() % humans.length]);
+            ql.push(game);
+            launches.add(ql);
+            assertFalse(game.annotators.isAvailable(i, ql.human));
+            assertAnnotatorIndexConsistent(game);
+        }
+
+        game.resetEvents();
+        assertEquals(0, game.annotators.total());
+        assertAnnotatorIndexConsistent(game);
+    }
+
+    @Theory
+    public void testInterchangeableHumansCollapse(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        Game.HumanArrival[] humans = new Game.HumanArrival[2];
+        for (int h = 0; h < humans.length; h++) {
+            Game.HumanJobPosting jp = new Game.HumanJobPosting();
+            jp.push(game);
+            humans[h] = game.humanProvider.getArtificialHuman(game, jp);
+            humans[h].push(game);
+        }
+        if (game.annotators.getVariables().length == 0) return;
+
+        // Fresh artificial humans are all the same, so only the first one gets offered queries
+
+        assertTrue(humans[1].isInterchangeableWith(humans[0]));
+        Set<Game.HumanArrival> asked = queriedHumans(game);
+        assertEquals(1, asked.size());
+        assertTrue(asked.contains(humans[0]));
+
+        // Once one of them has a query out, they're different
+
+        int variable = game.annotators.getVariables()[0];
+        Game.QueryLaunch ql = new Game.QueryLaunch(variable, humans[0]);
+        ql.push(game);
+        assertFalse(humans[1].isInterchangeableWith(humans[0]));
+        asked = queriedHumans(game);
+        assertTrue(asked.contains(humans[1]));
+
+        // And the same again when the other one catches up
+
+        new Game.QueryLaunch(variable, humans[1]).push(game);
+        assertTrue(humans[1].isInterchangeableWith(humans[0]));
+        assertFalse(queriedHumans(game).contains(humans[1]));
+
+        game.stack.peek().pop(game);
+        ql.pop(game);
+        assertTrue(humans[1].isInterchangeableWith(humans[0]));
+    }
+
+    @Theory
+    public void testConfidenceActionFilter(@ForAll(sampleSize = 20) @From(GameGenerator.class) Game game) throws Exception {
+        Game.HumanJobPosting jp = new Game.HumanJobPosting();
+        jp.push(game);
+        game.humanProvider.getArtificialHuman(game, jp).push(game);
+
+        int unfiltered = queriedVariables(game).size();
+
+        // Nothing is ever more than certain, and everything is at least 0% certain
+
+        game.actionFilter = new Game.ConfidenceActionFilter(1.1);
+        assertEquals(unfiltered, queriedVariables(game).size());
+        game.actionFilter = new Game.ConfidenceActionFilter(0.0);
+        assertEquals(0, queriedVariables(game).size());
+
+        game.actionFilter = new Game.ConfidenceActionFilter(0.9);
+        double[][] marginals = game.getMarginals();
+        for (int variable : queriedVariables(game)) {
+            for (double p : marginals[variable]) assertTrue(p < 0.9);
+        }
+
+        // The filter travels with clones and serialized games
+
+        Game clone = game.getClones(1)[0];
+        assertEquals(0.9, ((Game.ConfidenceActionFilter)clone.actionFilter).confidence, 0.0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        game.writeToStream(out);
+        Game recovered = Game.readFromStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(0.9, ((Game.ConfidenceActionFilter)recovered.actionFilter).confidence, 0.0);
+        assertEquals(queriedVariables(game), queriedVariables(recovered));
+    }
+
+    private Set<Integer> queriedVariables(Game game) {
+        Set<Integer> variables = new HashSet<>();
+        for (Game.Event e : game.getLegalMoves()) {
+            if (e instanceof Game.QueryLaunch) variables.add(((Game.QueryLaunch)e).variable);
+        }
+        return variables;
+    }
+
+    private Set<Game.HumanArrival> queriedHumans(Game game) {
+        Set<Game.HumanArrival> humans = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Game.Event e : game.getLegalMoves()) {
+            if (e instanceof Game.QueryLaunch) humans.add(((Game.QueryLaunch)e).human);
+        }
+        return humans;
+    }
+
+    private void assertAnnotatorIndexConsistent(Game game) {
+        int total = 0;
+        for (int i : game.annotators.getVariables()) {
+            Set<Game.HumanArrival> available = game.availableAnnotators.get(i);
+            assertEquals(game.annotators.count(i), available.size());
+            int seen = 0;
+            for (Game.HumanArrival human : available) {
+                assertTrue(game.annotators.isAvailable(i, human));
+                seen++;
+            }
+            assertEquals(available.size(), seen);
+            total += seen;
+        }
+        assertEquals(total, game.annotators.total());
+    }
+
+    private void assertMarginalsMatchCliqueTree(Game game) {
+        double[][] incremental = game.getMarginals();
+        double[][] fresh = new CliqueTree(game.model, game.weights).calculateMarginalsJustSingletons();
+
+        for (int i = 0; i < game.variableSizes.length; i++) {
+            if (fresh[i] == null) continue;
+            for (int j = 0; j < fresh[i].length; j++) {
+                assertEquals(fresh[i][j], incremental[i][j], 1.0e-7);
+            }
+        }
+    }
+
     public static class GameGenerator extends Generator<Game> {
         GraphicalModelGenerator modelGenerator = new GraphicalModelGenerator(GraphicalModel.class);
         WeightsGenerator weightsGenerator = new WeightsGenerator(ConcatVector.class);
@@ -3,15 +3,35 @@ package com.github.keenon.lense.gameplay.players;
 import com.github.keenon.lense.gameplay.Game;
 import com.github.keenon.lense.gameplay.GameTest;
 import com.github.keenon.lense.gameplay.utilities.UncertaintyUtility;
+import com.github.keenon.lense.gameplay.utilities.UncertaintyUtilityEstimate;
 import com.github.keenon.lense.gameplay.utilities.UncertaintyUtilityWithoutTime;
 import com.github.keenon.loglinear.model.GraphicalModel;
 import com.pholser.junit.quickcheck.ForAll;
 import com.pholser.junit.quickcheck.From;
 import org.junit.contrib.theories.Theories;
 import org.junit.contrib.theories.Theory;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static org.junit.Assert.*;
 
@@ -60,6 +80,836 @@ public class GamePlayerMCTSTest {
         // assertTrue(mctsAccuracy > 0.7);
     }
 
+    @Theory
+    public void testDistributedWorkers(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        DistributedSearchWorker[] workers = new DistributedSearchWorker[2];
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new DistributedSearchWorker(0);
+            workers[i].start();
+            mcts.distributedWorkers.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), workers[i].getPort()));
+        }
+
+        try {
+            while (!game.isTerminated()) {
+                if (game.isGameplayerTurn()) {
+                    Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+                    boolean legal = false;
+                    for (Game.Event legalMove : game.getLegalMoves()) {
+                        if (GamePlayerMCTS.sameMove(legalMove, move)) legal = true;
+                    }
+                    assertTrue(legal);
+                    move.push(game);
+                }
+                else {
+                    game.sampleNextEvent(r).push(game);
+                }
+            }
+        }
+        finally {
+            for (DistributedSearchWorker worker : workers) worker.close();
+        }
+    }
+
+    @Theory
+    public void testDistributedWorkerOnlyRunsRegisteredUtilities(@ForAll(sampleSize = 2) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        while (!game.isTerminated() && !game.isGameplayerTurn()) game.sampleNextEvent(r).push(game);
+        if (game.isTerminated()) return;
+        Game.Event[] legalMoves = game.getLegalMoves();
+
+        DistributedSearchWorker worker = new DistributedSearchWorker(0);
+        worker.start();
+        try {
+            // Nothing off this machine can reach it unless we ask
+            assertTrue(worker.serverSocket.getInetAddress().isLoopbackAddress());
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), worker.getPort());
+
+            ByteArrayOutputStream serializedGame = new ByteArrayOutputStream();
+            game.writeToStream(serializedGame);
+
+            // A utility the worker doesn't know is refused, rather than instantiated by name
+
+            Function<Game, Double> unregistered = (g) -> 0.0;
+            try {
+                DistributedSearchWorker.requestSearch(address, serializedGame.toByteArray(), unregistered, 7, 0, true,
+                        legalMoves, 10000).get();
+                fail("The worker ran a search with a utility nobody registered");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("isn't registered"));
+            }
+
+            // And a registered one works, on the same connection settings
+
+            int visits = 0;
+            for (GamePlayerMCTS.MergedMove move : DistributedSearchWorker.requestSearch(address, serializedGame.toByteArray(),
+                    new UncertaintyUtility(), 7, 0, true, legalMoves, 10000).get()) {
+                visits += move.visits;
+            }
+            assertTrue(visits > 0);
+        }
+        finally {
+            worker.close();
+        }
+    }
+
+    @Theory
+    public void testPonderLeavesGameAlone(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.pondering = true;
+
+        while (!game.isTerminated()) {
+            if (game.isGameplayerTurn()) {
+                mcts.getNextMove(game, new UncertaintyUtility()).push(game);
+            }
+            else {
+                int depth = game.stack.size();
+                Game.Event top = game.stack.peek();
+                long hash = game.getStateHash();
+
+                AtomicInteger checks = new AtomicInteger();
+                mcts.ponder(game, new UncertaintyUtility(), () -> checks.incrementAndGet() > 50);
+
+                assertEquals(depth, game.stack.size());
+                assertSame(top, game.stack.peek());
+                assertEquals(hash, game.getStateHash());
+
+                game.sampleNextEvent(r).push(game);
+            }
+        }
+    }
+
+    @Theory
+    public void testPonderingIsSliced(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        while (!game.isTerminated() && (game.isGameplayerTurn() || game.inFlightRequests.isEmpty())) {
+            if (game.isGameplayerTurn()) {
+                // Get some queries out, so there's something to wait on
+                Game.Event[] legalMoves = game.getLegalMoves();
+                Game.Event move = legalMoves[0];
+                for (Game.Event legalMove : legalMoves) {
+                    if (legalMove instanceof Game.QueryLaunch || (legalMove instanceof Game.HumanJobPosting && !(move instanceof Game.QueryLaunch))) {
+                        move = legalMove;
+                    }
+                }
+                move.push(game);
+            }
+            else {
+                game.sampleNextEvent(r).push(game);
+            }
+        }
+        if (game.isTerminated()) return;
+
+        // Count the tasks pondering hands the pool
+
+        AtomicInteger tasks = new AtomicInteger();
+        SearchScheduler scheduler = new SearchScheduler(2) {
+            @Override
+            public <T> ForkJoinTask<T> submit(Callable<T> task) {
+                tasks.incrementAndGet();
+                return super.submit(task);
+            }
+        };
+        GamePlayerMCTS mcts = new GamePlayerMCTS(scheduler);
+        assertFalse(mcts.pondering);
+        mcts.pondering = true;
+        mcts.ponderSlicePlayouts = 4;
+        mcts.maxPonderNodes = 300;
+
+        try {
+            // Nothing ever arrives, so only the node budget can stop this
+            mcts.ponder(game, new UncertaintyUtility(), () -> false);
+        }
+        finally {
+            scheduler.shutdown();
+        }
+
+        GamePlayerMCTS.PreviousSearch search = mcts.previousSearches.get(game);
+        assertNotNull(search);
+        assertTrue(search.arena.size() >= mcts.maxPonderNodes);
+        // Only the playouts already running when the budget ran out can take us past it
+        assertTrue(search.arena.size() < mcts.maxPonderNodes * 2);
+        assertTrue(tasks.get() * mcts.ponderSlicePlayouts >= search.arena.visits(search.root));
+    }
+
+    @Theory
+    public void testTranspositionsShareStatistics(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        int variable = game.availableAnnotators.keySet().iterator().next();
+
+        Game.HumanArrival[] humans = new Game.HumanArrival[2];
+        for (int i = 0; i < humans.length; i++) {
+            Game.HumanJobPosting jp = new Game.HumanJobPosting();
+            jp.push(game);
+            humans[i] = game.humanProvider.getArtificialHuman(game, jp);
+            humans[i].push(game);
+        }
+
+        // Launch the same two queries in both orders, and note the state we end up in each way
+
+        long[] keys = new long[2];
+        Game.QueryLaunch[] lastLaunches = new Game.QueryLaunch[2];
+        for (int order = 0; order < 2; order++) {
+            Game.QueryLaunch first = new Game.QueryLaunch(variable, humans[order]);
+            Game.QueryLaunch second = new Game.QueryLaunch(variable, humans[1 - order]);
+            first.push(game);
+            long halfway = GamePlayerMCTS.transpositionKey(game);
+            second.push(game);
+            keys[order] = GamePlayerMCTS.transpositionKey(game);
+            assertNotEquals(halfway, keys[order]);
+            lastLaunches[order] = second;
+            second.pop(game);
+            first.pop(game);
+        }
+        assertEquals(keys[0], keys[1]);
+
+        // Nodes for the two orders should pool their statistics, and nodes for other states shouldn't
+
+        SearchArena arena = new SearchArena();
+        int a = arena.allocate(lastLaunches[0]);
+        arena.registerTransposition(a, keys[0]);
+        int b = arena.allocate(lastLaunches[1]);
+        arena.registerTransposition(b, keys[1]);
+        int other = arena.allocate(null);
+        arena.registerTransposition(other, GamePlayerMCTS.transpositionKey(game));
+
+        assertEquals(arena.statistics(a), arena.statistics(b));
+        assertNotEquals(arena.statistics(a), arena.statistics(other));
+
+        arena.beginVisit(a, 0.0);
+        arena.endVisit(a, 0.5, 0.0);
+        arena.beginVisit(b, 0.0);
+        arena.endVisit(b, 1.5, 0.0);
+        assertEquals(2, arena.visits(a));
+        assertEquals(2, arena.visits(b));
+        assertEquals(2.0, arena.observedUtility(b), 1.0e-9);
+        assertEquals(0, arena.visits(other));
+    }
+
+    @Theory
+    public void testMoveTimeBudget(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.multithreaded = false;
+        mcts.earlyStopping = false;
+        mcts.moveTimeBudgetMillis = 200;
+
+        Game.Event[] legalMoves = game.getLegalMoves();
+        if (legalMoves.length < 2) return;
+
+        // With a deadline, the search should use all of it, and run far more playouts than the fixed budget would
+
+        long start = System.nanoTime();
+        Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(elapsedMillis >= mcts.moveTimeBudgetMillis);
+        assertTrue(elapsedMillis < mcts.moveTimeBudgetMillis + 5000);
+        assertTrue(isLegal(game, move));
+
+        GamePlayerMCTS.PreviousSearch search = mcts.previousSearches.get(game);
+        if (search != null) {
+            assertTrue(search.arena.visits(search.root) > Math.ceil(legalMoves.length * 1.5));
+        }
+    }
+
+    @Theory
+    public void testSubtreeReuse(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.multithreaded = false;
+
+        while (!game.isTerminated()) {
+            if (!game.isGameplayerTurn()) {
+                game.sampleNextEvent(r).push(game);
+                continue;
+            }
+
+            // If we kept a tree from the last move, find the node for where the game is now, and remember how many
+            // playouts it already had
+
+            int carriedOver = 0;
+            GamePlayerMCTS.PreviousSearch previous = mcts.previousSearches.get(game);
+            if (previous != null) {
+                int cursor = previous.root;
+                for (int i = previous.depth; i < game.stack.size() && cursor != SearchArena.NONE; i++) {
+                    int next = SearchArena.NONE;
+                    for (int child = previous.arena.firstChild(cursor); child != SearchArena.NONE; child = previous.arena.nextSibling(child)) {
+                        if (GamePlayerMCTS.sameMove(previous.arena.event(child), game.stack.get(i))) next = child;
+                    }
+                    cursor = next;
+                }
+                if (cursor != SearchArena.NONE) carriedOver = previous.arena.visits(cursor);
+            }
+
+            Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+            assertTrue(isLegal(game, move));
+
+            // The new search should have started from the old subtree's statistics, and added to them
+
+            GamePlayerMCTS.PreviousSearch search = mcts.previousSearches.get(game);
+            if (search != null && carriedOver > 0) {
+                assertTrue(search.arena.visits(search.root) > carriedOver);
+            }
+            move.push(game);
+        }
+    }
+
+    @Theory
+    public void testSubtreeReuseShiftsCopies(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.multithreaded = false;
+        mcts.moveTimeBudgetMillis = 20;
+
+        while (!game.isTerminated()) {
+            if (!game.isGameplayerTurn()) {
+                game.sampleNextEvent(r).push(game);
+                continue;
+            }
+
+            // Remember what every event in the tree we kept looked like before it gets reused
+
+            Map<Game.Event, Long> oldTimes = new IdentityHashMap<>();
+            GamePlayerMCTS.PreviousSearch previous = mcts.previousSearches.get(game);
+            if (previous != null) {
+                for (int node = 0; node < previous.arena.size(); node++) {
+                    Game.Event e = previous.arena.event(node);
+                    if (e != null) oldTimes.put(e, e.timeSinceGameStart);
+                }
+            }
+
+            Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+            assertTrue(isLegal(game, move));
+            for (Map.Entry<Game.Event, Long> entry : oldTimes.entrySet()) {
+                assertEquals(entry.getValue().longValue(), entry.getKey().timeSinceGameStart);
+            }
+
+            // Every move at the root happens now, whether it was carried over from the old tree or not. With only one
+            // legal move there's no search, so whatever we had from before is still there.
+
+            GamePlayerMCTS.PreviousSearch search = mcts.previousSearches.get(game);
+            if (search == null || search == previous) {
+                move.push(game);
+                continue;
+            }
+            for (int child = search.arena.firstChild(search.root); child != SearchArena.NONE; child = search.arena.nextSibling(child)) {
+                assertEquals(game.timeSinceGameStart, search.arena.event(child).timeSinceGameStart);
+                assertNotSame(move, search.arena.event(child));
+            }
+
+            // Playing the move a little late, like a real game would, can't change the tree we kept
+
+            move.timeSinceGameStart = game.timeSinceGameStart + 1;
+            move.push(game);
+            for (int child = search.arena.firstChild(search.root); child != SearchArena.NONE; child = search.arena.nextSibling(child)) {
+                assertEquals(search.time, search.arena.event(child).timeSinceGameStart);
+            }
+        }
+    }
+
+    @Theory
+    public void testFailedPlayoutDropsClonePool(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.multithreaded = true;
+        UncertaintyUtility utility = new UncertaintyUtility();
+
+        while (!game.isTerminated() && (!game.isGameplayerTurn() || game.getLegalMoves().length == 1)) {
+            if (game.isGameplayerTurn()) game.getLegalMoves()[0].push(game);
+            else game.sampleNextEvent(r).push(game);
+        }
+        if (game.isTerminated()) return;
+
+        mcts.getNextMove(game, utility);
+        Game[] before = mcts.clonePools.get(game).getClones(game, 1);
+
+        // Blow up once, partway through some thread's playout, leaving its clone with events still pushed
+
+        AtomicBoolean thrown = new AtomicBoolean();
+        Function<Game, Double> failing = (g) -> {
+            if (thrown.compareAndSet(false, true)) throw new IllegalStateException("Injected failure");
+            return utility.apply(g);
+        };
+        mcts.getNextMove(game, failing);
+        assertTrue(thrown.get());
+        assertFalse(mcts.clonePools.containsKey(game));
+
+        // The next search gets fresh clones, which match the game
+
+        assertTrue(isLegal(game, mcts.getNextMove(game, utility)));
+        for (Game clone : mcts.clonePools.get(game).getClones(game, 1)) {
+            assertNotSame(before[0], clone);
+            assertEquals(game.stack.size(), clone.stack.size());
+            assertEquals(game.getStateHash(), clone.getStateHash());
+        }
+    }
+
+    @Theory
+    public void testConcurrentPlayouts(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        // Big enough that any virtual loss left behind would drag averages well outside the range of real utilities
+        mcts.virtualLoss = 1000.0;
+        UncertaintyUtility utility = new UncertaintyUtility();
+
+        int numThreads = 4;
+        int playoutsPerThread = 50;
+        SearchArena arena = new SearchArena();
+        int root = arena.allocate(null);
+        arena.registerTransposition(root, GamePlayerMCTS.transpositionKey(game));
+
+        Game[] clones = game.getClones(numThreads);
+        Thread[] threads = new Thread[numThreads];
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < numThreads; i++) {
+            int thread = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    Random r = new Random(thread);
+                    for (int j = 0; j < playoutsPerThread; j++) {
+                        mcts.playOut(arena, root, thread, r, clones[thread], utility);
+                    }
+                }
+                catch (Throwable t) {
+                    t.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, failures.get());
+
+        // Every playout counts once at the root, and passes through one of its children, which may also share statistics
+        // with a transposition further down
+
+        assertEquals(numThreads * playoutsPerThread, arena.visits(root));
+        if (!game.isTerminated()) {
+            int childVisits = 0;
+            for (int child = arena.firstChild(root); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+                childVisits += arena.visits(child);
+
+                // Threads racing to expand the same move must not both get it into the tree
+                for (int other = arena.nextSibling(child); other != SearchArena.NONE; other = arena.nextSibling(other)) {
+                    assertFalse(GamePlayerMCTS.sameMove(arena.event(child), arena.event(other)));
+                }
+            }
+            assertTrue(childVisits >= arena.visits(root));
+        }
+
+        // Once every playout is back, all the virtual loss should have been taken back out
+
+        double slack = 1.0e-6;
+        assertTrue(arena.averageUtility(root) >= arena.getMinUtility() - slack);
+        assertTrue(arena.averageUtility(root) <= arena.getMaxUtility() + slack);
+        for (int child = arena.firstChild(root); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+            if (arena.visits(child) == 0) continue;
+            assertTrue(arena.averageUtility(child) >= arena.getMinUtility() - slack);
+            assertTrue(arena.averageUtility(child) <= arena.getMaxUtility() + slack);
+        }
+
+        // And none of it should have touched the original game
+
+        assertEquals(0, game.stack.size());
+    }
+
+    @Theory
+    public void testDeterministicSearchIsRepeatable(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+
+        // Players on pools of different sizes, which shouldn't make any difference to a deterministic search
+
+        SearchScheduler[] schedulers = new SearchScheduler[]{ new SearchScheduler(1), new SearchScheduler(3) };
+        GamePlayerMCTS[] players = new GamePlayerMCTS[3];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new GamePlayerMCTS(schedulers[i % schedulers.length]);
+            players[i].deterministic = true;
+            players[i].seed = 7;
+        }
+
+        try {
+            while (!game.isTerminated()) {
+                if (game.isGameplayerTurn()) {
+                    Game.Event move = players[0].getNextMove(game, new UncertaintyUtility());
+                    for (int i = 1; i < players.length; i++) {
+                        assertTrue(GamePlayerMCTS.sameMove(move, players[i].getNextMove(game, new UncertaintyUtility())));
+                    }
+                    // Asking the same player again shouldn't change its mind either
+                    assertTrue(GamePlayerMCTS.sameMove(move, players[0].getNextMove(game, new UncertaintyUtility())));
+                    move.push(game);
+                }
+                else {
+                    game.sampleNextEvent(r).push(game);
+                }
+            }
+        }
+        finally {
+            for (SearchScheduler scheduler : schedulers) scheduler.shutdown();
+        }
+    }
+
+    @Theory
+    public void testRootParallelStatisticsAddUp(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        while (!game.isTerminated() && !game.isGameplayerTurn()) game.sampleNextEvent(r).push(game);
+        if (game.isTerminated()) return;
+        Game.Event[] legalMoves = game.getLegalMoves();
+
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.deterministic = true;
+        mcts.deterministicWorkers = 3;
+        mcts.earlyStopping = false;
+        List<GamePlayerMCTS.MergedMove> merged = mcts.rootParallelStatistics(game, new UncertaintyUtility(), legalMoves,
+                new SplittableRandom(7), System.nanoTime(), 0);
+
+        // Grow each worker's tree again by hand, from the same random streams, and add up their roots ourselves
+
+        int playoutsPerWorker = (int)Math.ceil(Math.max(5, legalMoves.length * 2.0 / mcts.deterministicWorkers));
+        int[] visits = new int[legalMoves.length];
+        double[] observedUtility = new double[legalMoves.length];
+        SplittableRandom streams = new SplittableRandom(7);
+        for (int i = 0; i < mcts.deterministicWorkers; i++) {
+            Random workerRandom = new Random(streams.split().nextLong());
+            SearchArena arena = new SearchArena();
+            int root = arena.allocate(null);
+            arena.registerTransposition(root, GamePlayerMCTS.transpositionKey(game));
+            for (int j = 0; j < playoutsPerWorker; j++) {
+                mcts.playOut(arena, root, 0, workerRandom, game, new UncertaintyUtility());
+            }
+            assertEquals(playoutsPerWorker, arena.visits(root));
+
+            int childVisits = 0;
+            for (int child = arena.firstChild(root); child != SearchArena.NONE; child = arena.nextSibling(child)) {
+                childVisits += arena.visits(child);
+                for (int m = 0; m < legalMoves.length; m++) {
+                    if (!GamePlayerMCTS.sameMove(legalMoves[m], arena.event(child))) continue;
+                    visits[m] += arena.visits(child);
+                    observedUtility[m] += arena.observedUtility(child);
+                }
+            }
+            assertEquals(playoutsPerWorker, childVisits);
+        }
+
+        // Every playout shows up exactly once in the merged statistics, against the move it went through
+
+        int totalVisits = 0;
+        Set<Integer> seen = new HashSet<>();
+        for (GamePlayerMCTS.MergedMove move : merged) {
+            int m = 0;
+            while (!GamePlayerMCTS.sameMove(legalMoves[m], move.move)) m++;
+            assertSame(legalMoves[m], move.move);
+            assertTrue(seen.add(m));
+            assertEquals(visits[m], move.visits);
+            assertEquals(observedUtility[m], move.observedUtility, 1.0e-9);
+            totalVisits += move.visits;
+        }
+        assertEquals(mcts.deterministicWorkers * playoutsPerWorker, totalVisits);
+        for (int m = 0; m < legalMoves.length; m++) {
+            if (!seen.contains(m)) assertEquals(0, visits[m]);
+        }
+    }
+
+    @Theory
+    @SuppressWarnings("deprecation")
+    public void testExecutorConstructor(@ForAll(sampleSize = 5) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(2);
+        GamePlayerMCTS mcts = new GamePlayerMCTS(executor);
+        assertEquals(2, mcts.scheduler.getParallelism());
+
+        try {
+            while (!game.isTerminated()) {
+                if (game.isGameplayerTurn()) {
+                    Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+                    assertTrue(isLegal(game, move));
+                    move.push(game);
+                }
+                else {
+                    game.sampleNextEvent(r).push(game);
+                }
+            }
+
+            // Failures inside a task have to come back out to whoever joins on it
+
+            ForkJoinTask<Void> failing = mcts.scheduler.submit(() -> {
+                throw new IllegalStateException("expected");
+            });
+            try {
+                failing.get();
+                fail("Expected the task's exception");
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Theory
+    public void testMoveDescriptors(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerRandom random = new GamePlayerRandom(r);
+
+        // Within the limits on variables and humans, no two legal moves at any node should share a descriptor
+
+        while (!game.isTerminated()) {
+            if (game.isGameplayerTurn()) {
+                Game.Event[] legalMoves = game.getLegalMoves();
+                Set<Integer> descriptors = new HashSet<>();
+                for (Game.Event move : legalMoves) {
+                    assertTrue(descriptors.add(GamePlayerMCTS.moveDescriptor(move)));
+                }
+                random.getNextMove(game, null).push(game);
+            }
+            else {
+                game.sampleNextEvent(r).push(game);
+            }
+        }
+    }
+
+    @Test
+    public void testMoveDescriptorCollisions() throws Exception {
+        Game.HumanArrival human = new Game.HumanArrival(null, null, null, new HashMap<>());
+        human.slot = 3;
+
+        // Variables 2^16 apart wrap around onto the same descriptor
+
+        Game.QueryLaunch indexed = new Game.QueryLaunch(5, human);
+        Game.QueryLaunch colliding = new Game.QueryLaunch(5 + (1 << 16), human);
+        Game.QueryLaunch missing = new Game.QueryLaunch(5 + (2 << 16), human);
+        assertEquals(GamePlayerMCTS.moveDescriptor(indexed), GamePlayerMCTS.moveDescriptor(colliding));
+
+        SearchArena arena = new SearchArena();
+        int root = arena.allocate(null);
+        int[] children = new int[2];
+        Game.QueryLaunch[] moves = new Game.QueryLaunch[]{ indexed, colliding };
+        for (int i = 0; i < moves.length; i++) {
+            children[i] = arena.allocate(moves[i]);
+            int registered = arena.registerChild(root, GamePlayerMCTS.moveDescriptor(moves[i]), children[i]);
+            assertEquals(children[0], registered);
+            assertTrue(arena.addChild(root, arena.firstChild(root), children[i]));
+        }
+
+        // The index answers for the first move, and the second one is found by falling back to the child list
+
+        assertEquals(children[0], GamePlayerMCTS.findChild(arena, root, indexed));
+        assertEquals(children[1], GamePlayerMCTS.findChild(arena, root, colliding));
+        assertEquals(SearchArena.NONE, GamePlayerMCTS.findChild(arena, root, missing));
+        assertEquals(SearchArena.NONE, GamePlayerMCTS.findChild(arena, root, new Game.Wait()));
+    }
+
+    @Theory
+    public void testRolloutsWithGamePlayerThreshold(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerThreshold threshold = new GamePlayerThreshold();
+        // Outside of production, the threshold player asks for more humans whether or not it's allowed to
+        threshold.production = false;
+        RolloutPolicy policy = RolloutPolicy.fromGamePlayer(threshold);
+
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.multithreaded = false;
+        mcts.rolloutPolicy = policy;
+        mcts.maxSimulationDepth = 100;
+
+        for (int moves = 0; moves < 30 && !game.isTerminated(); ) {
+            if (game.isGameplayerTurn()) {
+                assertTrue(isLegal(game, policy.getNextMove(game, new UncertaintyUtility(), r)));
+
+                // Search with the policy finishing every playout, which mustn't push anything illegal onto the clones
+                Game.Event move = mcts.getNextMove(game, new UncertaintyUtility());
+                assertTrue(isLegal(game, move));
+
+                // Move by the policy itself in the real game, so we get into the states where it wants more humans than
+                // it's allowed
+                policy.getNextMove(game, new UncertaintyUtility(), r).push(game);
+                moves++;
+            }
+            else {
+                game.sampleNextEvent(r).push(game);
+            }
+        }
+    }
+
+    @Theory
+    public void testLeafEvaluatorUsesSearchUtility(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        int variable = game.availableAnnotators.keySet().iterator().next();
+        Game.HumanJobPosting jp = new Game.HumanJobPosting();
+        jp.push(game);
+        Game.HumanArrival human = game.humanProvider.getArtificialHuman(game, jp);
+        human.push(game);
+        new Game.QueryLaunch(variable, human).push(game);
+
+        // With a query in flight, the estimate is the utility after waiting for it, which only costs anything under a
+        // utility that cares about time
+
+        UncertaintyUtility timed = new UncertaintyUtility();
+        UncertaintyUtilityWithoutTime untimed = new UncertaintyUtilityWithoutTime();
+        long time = game.timeSinceGameStart;
+        double wait = human.delayModel.getMean();
+        assertEquals(timed.apply(game) - UncertaintyUtility.perMillisecondPenalty * Math.ceil(wait),
+                new UncertaintyUtilityEstimate(timed).apply(game), 1.0e-9);
+        assertEquals(untimed.apply(game), new UncertaintyUtilityEstimate(untimed).apply(game), 1.0e-9);
+        assertEquals(time, game.timeSinceGameStart);
+
+        // By default, playouts cut off before the end are scored with the search's own utility, so every playout calls
+        // it exactly once, whether or not it got to the end
+
+        AtomicInteger calls = new AtomicInteger();
+        Function<Game, Double> counting = (g) -> {
+            calls.incrementAndGet();
+            return untimed.apply(g);
+        };
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.maxSimulationDepth = 1;
+        SearchArena arena = new SearchArena();
+        int root = arena.allocate(null);
+        arena.registerTransposition(root, GamePlayerMCTS.transpositionKey(game));
+        Random r = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            mcts.playOut(arena, root, 0, r, game, counting);
+        }
+        assertEquals(20, calls.get());
+    }
+
+    @Theory
+    public void testEarlyStopping(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        GamePlayerRandom random = new GamePlayerRandom(r);
+
+        while (!game.isTerminated()) {
+            if (!game.isGameplayerTurn()) {
+                game.sampleNextEvent(r).push(game);
+                continue;
+            }
+
+            Game.Event[] legalMoves = game.getLegalMoves();
+            if (legalMoves.length > 1) {
+                // Fresh single threaded players, so both searches see the same random streams, and the one that stops
+                // early runs a prefix of the other's playouts
+
+                GamePlayerMCTS[] players = new GamePlayerMCTS[2];
+                Game.Event[] moves = new Game.Event[2];
+                for (int i = 0; i < players.length; i++) {
+                    players[i] = new GamePlayerMCTS();
+                    players[i].multithreaded = false;
+                    players[i].earlyStopping = i == 0;
+                    players[i].earlyStopMinPlayouts = 0;
+                    moves[i] = players[i].getNextMove(game, new UncertaintyUtilityWithoutTime());
+                }
+
+                // Stopping early can't happen before every root move has been tried, and mustn't change the answer
+
+                GamePlayerMCTS.PreviousSearch search = players[0].previousSearches.get(game);
+                if (search != null) {
+                    assertTrue(search.arena.visits(search.root) >= legalMoves.length);
+                    for (int child = search.arena.firstChild(search.root); child != SearchArena.NONE; child = search.arena.nextSibling(child)) {
+                        assertTrue(search.arena.visits(child) > 0);
+                    }
+                }
+                assertTrue(GamePlayerMCTS.sameMove(moves[0], moves[1]));
+            }
+
+            random.getNextMove(game, null).push(game);
+        }
+    }
+
+    @Test
+    public void testNotSettledWithUntriedMoves() throws Exception {
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.earlyStopMinPlayouts = 0;
+        SearchArena arena = new SearchArena();
+        int root = arena.allocate(null);
+        arena.registerTransposition(root, 0L);
+        GamePlayerMCTS.SearchBudget budget = mcts.new SearchBudget(arena, root, 2, 3, System.nanoTime(), 0);
+
+        // One playout, through the only child so far, of two legal moves
+
+        int first = arena.allocate(new Game.Wait());
+        arena.registerTransposition(first, 1L);
+        assertTrue(arena.addChild(root, SearchArena.NONE, first));
+        arena.observeUtility(root, 1, -1.0);
+        arena.observeUtility(first, 1, -1.0);
+        arena.recordUtility(-1.0);
+        assertFalse(budget.isSettled());
+
+        // Once the other move has been tried and fallen too far behind to catch up, we can stop
+
+        int second = arena.allocate(new Game.TurnIn());
+        arena.registerTransposition(second, 2L);
+        assertTrue(arena.addChild(root, first, second));
+        arena.observeUtility(root, 1, -5.0);
+        arena.observeUtility(second, 1, -5.0);
+        arena.recordUtility(-5.0);
+        assertFalse(budget.isSettled());
+        arena.observeUtility(root, 1, -1.0);
+        arena.observeUtility(first, 1, -1.0);
+        assertTrue(budget.isSettled());
+
+        // But not before the minimum number of playouts
+
+        mcts.earlyStopMinPlayouts = 10;
+        assertFalse(mcts.new SearchBudget(arena, root, 2, 3, System.nanoTime(), 0).isSettled());
+    }
+
+    @Theory
+    public void testProgressiveWidening(@ForAll(sampleSize = 10) @From(GameTest.GameGenerator.class) Game game) throws Exception {
+        Random r = new Random(42);
+        while (!game.isTerminated() && !game.isGameplayerTurn()) game.sampleNextEvent(r).push(game);
+        if (game.isTerminated()) return;
+
+        GamePlayerMCTS mcts = new GamePlayerMCTS();
+        mcts.movePrior = new MovePrior.Uncertainty();
+        int legalMoves = game.getLegalMoves().length;
+        int stackSize = game.stack.size();
+
+        SearchArena arena = new SearchArena();
+        int root = arena.allocate(null);
+        arena.registerTransposition(root, GamePlayerMCTS.transpositionKey(game));
+
+        // Enough playouts that the root should end up with every legal move
+        int playouts = (legalMoves - 1) * (legalMoves - 1) + 10;
+        for (int i = 0; i < playouts; i++) {
+            mcts.playOut(arena, root, 0, r, game, new UncertaintyUtilityWithoutTime());
+            assertEquals(stackSize, game.stack.size());
+
+            // The root widens by one move as its visits pass each square number, in order of the prior. It decided on
+            // this playout's move before counting it.
+
+            int visits = arena.visits(root) - 1;
+            assertEquals(Math.min(legalMoves, 1 + (int)Math.sqrt(visits)), arena.childCount(root));
+            for (int child = arena.firstChild(root); arena.nextSibling(child) != SearchArena.NONE; child = arena.nextSibling(child)) {
+                // Newer children come first
+                assertTrue(arena.getPrior(child) <= arena.getPrior(arena.nextSibling(child)));
+            }
+        }
+        assertEquals(legalMoves, arena.childCount(root));
+
+        // Everywhere else in the tree, gameplayer nodes widen the same way, and the environment keeps to the square root
+        // of its visits
+
+        for (int node = 0; node < arena.size(); node++) {
+            int first = arena.firstChild(node);
+            if (first == SearchArena.NONE) continue;
+            int visits = arena.visits(node);
+            if (arena.event(first).isGameplayerInitiated()) {
+                assertTrue(arena.childCount(node) <= 1 + (int)Math.sqrt(visits));
+            }
+            else {
+                assertTrue(arena.childCount(node) <= Math.max(1, (int)Math.ceil(Math.sqrt(visits))));
+            }
+        }
+    }
+
+    private static boolean isLegal(Game game, Game.Event move) {
+        for (Game.Event legalMove : game.getLegalMoves()) {
+            if (GamePlayerMCTS.sameMove(legalMove, move)) return true;
+        }
+        return false;
+    }
+
     private int isCorrect(GamePlayerMCTS mcts, Game game) {
         GamePlayerExhaustiveSearch bruteForce = new GamePlayerExhaustiveSearch();
         Game.Event nextMove = bruteForce.getNextMove(game, new UncertaintyUtilityWithoutTime());
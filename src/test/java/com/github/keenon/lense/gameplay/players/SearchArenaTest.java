@@ -0,0 +1,134 @@
+package com.github.keenon.lense.gameplay.players;
+
+import com.github.keenon.lense.gameplay.Game;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the node storage behind GamePlayerMCTS on its own: that nodes come out of a recycled arena as good as new,
+ * that the cap on the number of nodes holds, and that search threads' copies of events stay out of each other's way.
+ */
+public class SearchArenaTest {
+    @Test
+    public void testResetReusesStorage() throws Exception {
+        int maxNodes = SearchArena.CHUNK_SIZE * 2 + 10;
+        SearchArena arena = new SearchArena(maxNodes);
+
+        // Fill the arena right up, with statistics, children, transpositions and utilities everywhere
+
+        Game.Wait wait = new Game.Wait();
+        int root = arena.allocate(null);
+        arena.registerTransposition(root, 0L);
+        for (int i = 1; i < maxNodes; i++) {
+            int node = arena.allocate(wait);
+            assertEquals(i, node);
+            arena.registerTransposition(node, i % 100);
+            arena.setReconstructionPointer(node, 7);
+            arena.setPrior(node, 0.5);
+            arena.setExpansionCursor(node, 3);
+            arena.setThreadEvent(node, 2, wait);
+            arena.registerChild(root, i, node);
+            assertTrue(arena.addChild(root, arena.firstChild(root), node));
+            arena.observeUtility(node, 1, 2.0);
+            arena.recordUtility(i);
+        }
+        assertEquals(maxNodes, arena.size());
+        assertEquals(SearchArena.NONE, arena.allocate(wait));
+        assertEquals(maxNodes, arena.size());
+
+        SearchArena.Chunk[] chunks = new SearchArena.Chunk[arena.chunks.length()];
+        for (int c = 0; c < chunks.length; c++) chunks[c] = arena.chunks.get(c);
+
+        arena.reset();
+
+        // Nothing should survive the reset, and nothing should be holding on to events
+
+        assertEquals(0, arena.size());
+        assertEquals(0, arena.transpositionCount());
+        assertEquals(Double.POSITIVE_INFINITY, arena.getMinUtility(), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, arena.getMaxUtility(), 0.0);
+        for (SearchArena.Chunk chunk : chunks) {
+            for (Game.Event e : chunk.events) assertNull(e);
+            for (Game.Event[] row : chunk.threadEvents) {
+                if (row == null) continue;
+                for (Game.Event e : row) assertNull(e);
+            }
+        }
+
+        // Allocating again should hand out the same indices, in the same chunks, with fresh state
+
+        for (int i = 0; i < maxNodes; i++) {
+            int node = arena.allocate(null);
+            assertEquals(i, node);
+            arena.registerTransposition(node, i + 1000L);
+            assertEquals(node, arena.statistics(node));
+            assertEquals(0, arena.visits(node));
+            assertEquals(0.0, arena.observedUtility(node), 0.0);
+            assertEquals(SearchArena.NONE, arena.firstChild(node));
+            assertEquals(SearchArena.NONE, arena.nextSibling(node));
+            assertEquals(0, arena.childCount(node));
+            assertEquals(0, arena.getExpansionCursor(node));
+            assertEquals(-1, arena.getReconstructionPointer(node));
+            assertEquals(0.0, arena.getPrior(node), 0.0);
+            assertNull(arena.getThreadEvent(node, 2));
+            assertEquals(SearchArena.NONE, arena.findChild(0, i));
+        }
+        for (int c = 0; c < chunks.length; c++) assertSame(chunks[c], arena.chunks.get(c));
+        assertEquals(SearchArena.NONE, arena.allocate(null));
+    }
+
+    @Test
+    public void testThreadEventSlots() throws Exception {
+        int numNodes = SearchArena.CHUNK_SIZE + 100;
+        int numThreads = 6;
+        SearchArena arena = new SearchArena(numNodes);
+        for (int i = 0; i < numNodes; i++) arena.allocate(null);
+
+        // Every thread fills in its own copy of every node's event at once, adding rows to chunks as it goes, and none
+        // of them should ever see another's
+
+        Game.Event[][] copies = new Game.Event[numThreads][numNodes];
+        Thread[] threads = new Thread[numThreads];
+        AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            for (int i = 0; i < numNodes; i++) copies[t][i] = new Game.Wait();
+            threads[t] = new Thread(() -> {
+                for (int pass = 0; pass < 3; pass++) {
+                    for (int i = 0; i < numNodes; i++) {
+                        Game.Event e = arena.getThreadEvent(i, thread);
+                        if (e == null) arena.setThreadEvent(i, thread, copies[thread][i]);
+                        else if (e != copies[thread][i]) failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, failures.get());
+
+        for (int t = 0; t < numThreads; t++) {
+            for (int i = 0; i < numNodes; i++) assertSame(copies[t][i], arena.getThreadEvent(i, t));
+        }
+        // A thread that never asked has nothing
+        assertNull(arena.getThreadEvent(0, numThreads));
+
+        // Forgetting drops every copy, but leaves the nodes alone
+
+        arena.forgetThreadEvents();
+        assertEquals(numNodes, arena.size());
+        for (int t = 0; t < numThreads; t++) {
+            for (int i = 0; i < numNodes; i++) assertNull(arena.getThreadEvent(i, t));
+        }
+
+        // And a node allocated over an old one doesn't inherit its copies
+
+        arena.setThreadEvent(5, 1, copies[1][5]);
+        arena.reset();
+        for (int i = 0; i < 6; i++) arena.allocate(null);
+        assertNull(arena.getThreadEvent(5, 1));
+    }
+}